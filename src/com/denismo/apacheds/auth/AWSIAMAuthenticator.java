@@ -28,9 +28,13 @@ import org.apache.directory.server.core.authn.SimpleAuthenticator;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +43,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 /**
  * User: Denis Mikhalkin
@@ -48,20 +60,89 @@ import java.util.Properties;
  */
 public class AWSIAMAuthenticator extends AbstractAuthenticator {
     private static final Logger LOG = LoggerFactory.getLogger(AWSIAMAuthenticator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     public static class Config {
         public static final String PASSWORD_VALIDATOR = "iam_password";
         public static final String SECRET_KEY_VALIDATOR = "iam_secret_key";
         public static final String DUAL_VALIDATOR = "iam_dual";
         public static final String SIMPLE = "simple";
+        public static final String LIST_SYNC = "list";
+        public static final String SNAPSHOT_SYNC = "snapshot";
+        public static final String COUNTER_ID_MAPPING = "counter";
+        public static final String HASH_ID_MAPPING = "hash";
+        public static final String ACCOUNT_SUMMARY_VERIFY = "accountSummary";
+        public static final String CALLER_IDENTITY_VERIFY = "callerIdentity";
+        public static final int SNAPSHOT_REPORT_MAX_AGE = 4 * 60 * 60;
         public String rootDN = "dc=iam,dc=aws,dc=org";
         public int pollPeriod = 600;
         public String validator = "iam_secret_key";
+        public String syncMode = LIST_SYNC;
+        public String idMapping = COUNTER_ID_MAPPING;
+        public long idRangeStart = 100000;
+        public long idRangeSize = 1000000000;
+        public int fetchConcurrency = 4;
+        public double iamMinRate = 1;
+        public double iamMaxRate = 20;
+        public int pipelineQueueSize = 100;
+        public boolean persistSyncState = true;
+        public boolean changeProbe = false;
+        public int fullSyncEvery = 6;
+        public String eventQueueUrl = "";
+        public String eventQueueEndpoint = "";
+        public String eventQueueRegion = "";
+        public int rollingSlices = 1;
+        public int hotRefreshPeriod = 0;
+        public int hotWindow = 3600;
+        public int coldPollPeriod = 3600;
+        public boolean onDemandRefresh = false;
+        public int onDemandCacheTtl = 60;
+        public int onDemandTimeout = 2;
+        public double onDemandMaxRate = 1;
+        public int awsMaxConnections = 50;
+        public int awsMaxErrorRetry = 3;
+        public int credentialsRefresh = 300;
+        public int pollMinPeriod = 0;
+        public int pollMaxPeriod = 0;
+        public double pollJitter = 0.1;
+        public String accountRoles = "";
+        public String accountExternalId = "";
+        public String userPathPrefix = "/";
+        public String groupPathPrefix = "/";
+        public String includeGroups = "";
+        public String excludeGroups = "";
+        public int credentialReportMaxAge = 0;
+        public int verifyCacheTtl = 60;
+        public int verifyCacheSize = 10000;
+        public boolean verifyCachePasswords = false;
+        public int verifyTimeout = 10;
+        public int verifyConcurrency = 32;
+        public int dualHedgeDelay = 0;
+        public String signinEndpoint = "https://us-east-1.signin.aws.amazon.com";
+        public String verifyMethod = ACCOUNT_SUMMARY_VERIFY;
 
         public boolean isPasswordLogin() { return PASSWORD_VALIDATOR.equals(validator); }
         public boolean isSecretKeyLogin() { return SECRET_KEY_VALIDATOR.equals(validator); }
         public boolean isDualLogin() { return DUAL_VALIDATOR.equals(validator); }
         public boolean isSimpleLogin() { return SIMPLE.equals(validator); }
+        public boolean isSnapshotSync() { return SNAPSHOT_SYNC.equals(syncMode); }
+        public boolean isHashIdMapping() { return HASH_ID_MAPPING.equals(idMapping); }
+        public boolean isCallerIdentityVerify() { return CALLER_IDENTITY_VERIFY.equals(verifyMethod); }
+        /**
+         * @return the maximum age of the credential report, in seconds. The snapshot sync always uses the report, as
+         * it is the only way its number of calls does not grow with the number of users.
+         */
+        public int getCredentialReportMaxAge() {
+            if (credentialReportMaxAge <= 0 && isSnapshotSync()) return SNAPSHOT_REPORT_MAX_AGE;
+            return credentialReportMaxAge;
+        }
+        public List<String> getAccountRoles() {
+            List<String> roles = new ArrayList<String>();
+            for (String role : accountRoles.split(",")) {
+                if (!role.trim().isEmpty()) roles.add(role.trim());
+            }
+            return roles;
+        }
     }
 
     private static Config s_config;
@@ -74,12 +155,17 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
     }
 
     private _IAMPasswordValidator validator;
-    private LDAPIAMPoller poller;
+    private VerificationCache verificationCache;
+    private final SingleFlight<String, Boolean> verifications = new SingleFlight<String, Boolean>();
+    private final byte[] flightSalt = new byte[16];
+    private final List<LDAPIAMPoller> pollers = new ArrayList<LDAPIAMPoller>();
+    private IAMEventConsumer eventConsumer;
     private SimpleAuthenticator delegatedAuth;
     private boolean disabled;
 
     public AWSIAMAuthenticator() {
         super(AuthenticationLevel.SIMPLE);
+        new SecureRandom().nextBytes(flightSalt);
         delegatedAuth = new SimpleAuthenticator();
         LOG.info("AWSIAMAuthenticator has been created");
     }
@@ -94,8 +180,23 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
 
                 readIAMProperties();
 
-                poller = new LDAPIAMPoller(getDirectoryService());
-                poller.start();
+                LDAPIAMPoller defaultPoller = new LDAPIAMPoller(getDirectoryService());
+                // Every account is synced on its own, a failing one does not prevent the others from syncing
+                Map<String, LDAPIAMPoller> accountPollers = new HashMap<String, LDAPIAMPoller>();
+                for (String roleArn : getConfig().getAccountRoles()) {
+                    try {
+                        LDAPIAMPoller accountPoller = new LDAPIAMPoller(getDirectoryService(), roleArn);
+                        accountPoller.start();
+                        accountPollers.put(accountPoller.getAccountId(), accountPoller);
+                        pollers.add(accountPoller);
+                    } catch (Exception e) {
+                        LOG.error("Unable to sync the account of " + roleArn, e);
+                    }
+                }
+                defaultPoller.start();
+                // The account subtrees are within the default one, so it has to be matched last
+                pollers.add(defaultPoller);
+                startEventConsumer(defaultPoller, accountPollers);
             } catch (Exception e) {
                 LOG.error("Exception initializing AWSIAMAuthenticator", e);
                 disabled=true;
@@ -106,6 +207,41 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
     }
 
 
+    private void startEventConsumer(LDAPIAMPoller defaultPoller, Map<String, LDAPIAMPoller> accountPollers) {
+        Config config = getConfig();
+        if (config.eventQueueUrl == null || config.eventQueueUrl.isEmpty()) return;
+        eventConsumer = new IAMEventConsumer(IAMEventConsumer.createClient(defaultPoller.getCredentials(), config),
+                config.eventQueueUrl, defaultPoller, accountPollers);
+        eventConsumer.start();
+    }
+
+    @Override
+    protected void doDestroy() {
+        LOG.debug("Destroy called");
+        if (eventConsumer != null) {
+            eventConsumer.stop();
+            eventConsumer = null;
+        }
+        for (LDAPIAMPoller poller : pollers) {
+            poller.stop();
+        }
+        pollers.clear();
+        if (validator != null) {
+            validator.shutdown();
+        }
+        super.doDestroy();
+    }
+
+    /**
+     * @return the poller syncing the subtree the DN belongs to, or null
+     */
+    private LDAPIAMPoller getPoller(Dn dn) throws LdapException {
+        for (LDAPIAMPoller poller : pollers) {
+            if (poller.contains(dn)) return poller;
+        }
+        return null;
+    }
+
     private void readIAMProperties() throws LdapException {
         String propsPath = System.getProperty("iamLdapPropertiesPath", "/etc/iam_ldap.conf");
         File propsFile = new File(propsPath);
@@ -118,6 +254,49 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
                 if (props.containsKey("pollPeriod")) config.pollPeriod = Integer.parseInt(props.getProperty("pollPeriod"));
                 if (props.containsKey("rootDN")) config.rootDN = props.getProperty("rootDN");
                 if (props.containsKey("validator")) config.validator = props.getProperty("validator");
+                if (props.containsKey("syncMode")) config.syncMode = props.getProperty("syncMode");
+                if (props.containsKey("idMapping")) config.idMapping = props.getProperty("idMapping");
+                if (props.containsKey("idRangeStart")) config.idRangeStart = Long.parseLong(props.getProperty("idRangeStart"));
+                if (props.containsKey("idRangeSize")) config.idRangeSize = Long.parseLong(props.getProperty("idRangeSize"));
+                if (props.containsKey("fetchConcurrency")) config.fetchConcurrency = Integer.parseInt(props.getProperty("fetchConcurrency"));
+                if (props.containsKey("iamMinRate")) config.iamMinRate = Double.parseDouble(props.getProperty("iamMinRate"));
+                if (props.containsKey("iamMaxRate")) config.iamMaxRate = Double.parseDouble(props.getProperty("iamMaxRate"));
+                if (props.containsKey("pipelineQueueSize")) config.pipelineQueueSize = Integer.parseInt(props.getProperty("pipelineQueueSize"));
+                if (props.containsKey("persistSyncState")) config.persistSyncState = Boolean.parseBoolean(props.getProperty("persistSyncState"));
+                if (props.containsKey("changeProbe")) config.changeProbe = Boolean.parseBoolean(props.getProperty("changeProbe"));
+                if (props.containsKey("fullSyncEvery")) config.fullSyncEvery = Integer.parseInt(props.getProperty("fullSyncEvery"));
+                if (props.containsKey("eventQueueUrl")) config.eventQueueUrl = props.getProperty("eventQueueUrl");
+                if (props.containsKey("eventQueueEndpoint")) config.eventQueueEndpoint = props.getProperty("eventQueueEndpoint");
+                if (props.containsKey("eventQueueRegion")) config.eventQueueRegion = props.getProperty("eventQueueRegion");
+                if (props.containsKey("rollingSlices")) config.rollingSlices = Integer.parseInt(props.getProperty("rollingSlices"));
+                if (props.containsKey("hotRefreshPeriod")) config.hotRefreshPeriod = Integer.parseInt(props.getProperty("hotRefreshPeriod"));
+                if (props.containsKey("hotWindow")) config.hotWindow = Integer.parseInt(props.getProperty("hotWindow"));
+                if (props.containsKey("coldPollPeriod")) config.coldPollPeriod = Integer.parseInt(props.getProperty("coldPollPeriod"));
+                if (props.containsKey("onDemandRefresh")) config.onDemandRefresh = Boolean.parseBoolean(props.getProperty("onDemandRefresh"));
+                if (props.containsKey("onDemandCacheTtl")) config.onDemandCacheTtl = Integer.parseInt(props.getProperty("onDemandCacheTtl"));
+                if (props.containsKey("onDemandTimeout")) config.onDemandTimeout = Integer.parseInt(props.getProperty("onDemandTimeout"));
+                if (props.containsKey("onDemandMaxRate")) config.onDemandMaxRate = Double.parseDouble(props.getProperty("onDemandMaxRate"));
+                if (props.containsKey("awsMaxConnections")) config.awsMaxConnections = Integer.parseInt(props.getProperty("awsMaxConnections"));
+                if (props.containsKey("awsMaxErrorRetry")) config.awsMaxErrorRetry = Integer.parseInt(props.getProperty("awsMaxErrorRetry"));
+                if (props.containsKey("credentialsRefresh")) config.credentialsRefresh = Integer.parseInt(props.getProperty("credentialsRefresh"));
+                if (props.containsKey("pollMinPeriod")) config.pollMinPeriod = Integer.parseInt(props.getProperty("pollMinPeriod"));
+                if (props.containsKey("pollMaxPeriod")) config.pollMaxPeriod = Integer.parseInt(props.getProperty("pollMaxPeriod"));
+                if (props.containsKey("pollJitter")) config.pollJitter = Double.parseDouble(props.getProperty("pollJitter"));
+                if (props.containsKey("accountRoles")) config.accountRoles = props.getProperty("accountRoles");
+                if (props.containsKey("accountExternalId")) config.accountExternalId = props.getProperty("accountExternalId");
+                if (props.containsKey("userPathPrefix")) config.userPathPrefix = props.getProperty("userPathPrefix");
+                if (props.containsKey("groupPathPrefix")) config.groupPathPrefix = props.getProperty("groupPathPrefix");
+                if (props.containsKey("includeGroups")) config.includeGroups = props.getProperty("includeGroups");
+                if (props.containsKey("excludeGroups")) config.excludeGroups = props.getProperty("excludeGroups");
+                if (props.containsKey("credentialReportMaxAge")) config.credentialReportMaxAge = Integer.parseInt(props.getProperty("credentialReportMaxAge"));
+                if (props.containsKey("verifyCacheTtl")) config.verifyCacheTtl = Integer.parseInt(props.getProperty("verifyCacheTtl"));
+                if (props.containsKey("verifyCacheSize")) config.verifyCacheSize = Integer.parseInt(props.getProperty("verifyCacheSize"));
+                if (props.containsKey("verifyCachePasswords")) config.verifyCachePasswords = Boolean.parseBoolean(props.getProperty("verifyCachePasswords"));
+                if (props.containsKey("verifyTimeout")) config.verifyTimeout = Integer.parseInt(props.getProperty("verifyTimeout"));
+                if (props.containsKey("verifyConcurrency")) config.verifyConcurrency = Integer.parseInt(props.getProperty("verifyConcurrency"));
+                if (props.containsKey("dualHedgeDelay")) config.dualHedgeDelay = Integer.parseInt(props.getProperty("dualHedgeDelay"));
+                if (props.containsKey("signinEndpoint")) config.signinEndpoint = props.getProperty("signinEndpoint");
+                if (props.containsKey("verifyMethod")) config.verifyMethod = props.getProperty("verifyMethod");
                 AWSIAMAuthenticator.setConfig(config);
             } catch (IOException e) {
                 LOG.error("Unable to read IAM LDAP config file");
@@ -137,17 +316,32 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
         } else if (config.isSecretKeyLogin()) {
             validator = new IAMSecretKeyValidator();
         } else if (config.isDualLogin()) {
-            validator = new IAMDualValidator();
+            validator = new IAMDualValidator(config.dualHedgeDelay, config.verifyCacheSize);
         } else if (config.isSimpleLogin()) {
             validator = new IAMAccountPasswordValidator();
         } else {
             throw new LdapException("Unsupported validator mode: " + config.validator);
         }
+        if (config.verifyTimeout > 0) {
+            validator = new BoundedValidator(validator, config.verifyTimeout, config.verifyConcurrency);
+        }
+        // A console password which is changed or disabled is not seen by the poller, so it would stay cached for the TTL
+        boolean cacheable = config.isSecretKeyLogin() || config.verifyCachePasswords;
+        if (cacheable && config.verifyCacheTtl > 0 && config.verifyCacheSize > 0) {
+            verificationCache = new VerificationCache(config.verifyCacheTtl, config.verifyCacheSize);
+        }
     }
 
     @Override
     public LdapPrincipal authenticate(BindOperationContext bindContext) throws Exception {
-        if (!isAWSAccount(bindContext) || (isAWSAccount(bindContext) && getConfig().isSimpleLogin()) || disabled) {
+        Entry userEntry;
+        try {
+            userEntry = lookupEntry(bindContext.getDn());
+        } catch (LdapNoSuchObjectException e) {
+            if (disabled || getConfig().isSimpleLogin() || !materializeIfMissing(bindContext.getDn())) throw e;
+            userEntry = lookupEntry(bindContext.getDn());
+        }
+        if (!userEntry.hasObjectClass("iamaccount") || getConfig().isSimpleLogin() || disabled) {
             LOG.debug("Skipping " + bindContext.getDn() + " - not an AWS account");
             if (delegatedAuth == null) {
                 LOG.error("Delegated auth is null");
@@ -160,12 +354,27 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
 
         byte[] password = bindContext.getCredentials();
 
-        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
-                bindContext.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
-
-        Entry userEntry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
-
-        if (validator.verifyIAMPassword(userEntry, new String(password))) {
+        String secret = new String(password);
+        boolean valid = isVerified(userEntry, secret);
+        if (!valid) {
+            valid = verify(userEntry, secret);
+            if (!valid) {
+                Entry refreshed = refreshOnMismatch(bindContext.getDn(), userEntry);
+                if (refreshed != null) {
+                    userEntry = refreshed;
+                    valid = verify(userEntry, secret);
+                }
+            }
+            if (valid) {
+                rememberVerification(userEntry, secret);
+            }
+        }
+        if (valid) {
+            // Only successful binds count as activity, so failed binds cannot push accounts into the hot tier
+            LDAPIAMPoller poller = getPoller(bindContext.getDn());
+            if (poller != null && userEntry.get("uid") != null && !userEntry.hasObjectClass("iamrole")) {
+                poller.recordActivity(userEntry.get("uid").getString());
+            }
             LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
                     AuthenticationLevel.SIMPLE, password);
             IoSession session = bindContext.getIoSession();
@@ -188,11 +397,128 @@ public class AWSIAMAuthenticator extends AbstractAuthenticator {
         }
     }
 
-    private boolean isAWSAccount(BindOperationContext bindContext) throws LdapException {
-        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
-                bindContext.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+    /**
+     * Verifies the credentials against AWS. Concurrent binds of the same entry with the same credentials, typical
+     * of a host booting, share a single verification.
+     */
+    private boolean verify(final Entry userEntry, final String secret) throws Exception {
+        return verifications.execute(getFlightKey(userEntry, secret), new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return validator.verifyIAMPassword(userEntry, secret);
+            }
+        });
+    }
+
+    /**
+     * @return the key identifying a verification - a digest of the DN, the access key and the secret, so the secret
+     * is not kept in the map
+     */
+    private String getFlightKey(Entry userEntry, String secret) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(flightSalt);
+        digest.update(userEntry.getDn().getNormName().getBytes(UTF8));
+        digest.update((byte) 0);
+        Attribute accessKey = userEntry.get("accessKey");
+        if (accessKey != null) {
+            digest.update(accessKey.getString().getBytes(UTF8));
+        }
+        digest.update((byte) 0);
+        digest.update(secret.getBytes(UTF8));
+        return Base64.encodeBase64String(digest.digest());
+    }
+
+    /**
+     * @return true if the same credentials have recently been verified against AWS for the entry
+     */
+    private boolean isVerified(Entry userEntry, String secret) {
+        if (!isCacheable(userEntry)) return false;
+        try {
+            return verificationCache.isVerified(userEntry, secret);
+        } catch (Exception e) {
+            LOG.warn("Unable to check the cached verification of " + userEntry.getDn(), e);
+            return false;
+        }
+    }
+
+    private void rememberVerification(Entry userEntry, String secret) {
+        if (!isCacheable(userEntry)) return;
+        try {
+            verificationCache.verified(userEntry, secret);
+        } catch (Exception e) {
+            LOG.warn("Unable to cache the verification of " + userEntry.getDn(), e);
+        }
+    }
 
+    /**
+     * @return true if the verifications of the entry may be cached. Roles are not: the poller does not track their
+     * credentials, so nothing would drop a cached verification once they are revoked.
+     */
+    private boolean isCacheable(Entry userEntry) {
+        return verificationCache != null && !userEntry.hasObjectClass("iamrole");
+    }
+
+    /**
+     * Creates the entry of a user which has been added to IAM after the last poll.
+     */
+    private boolean materializeIfMissing(Dn dn) {
+        try {
+            LDAPIAMPoller poller = getPoller(dn);
+            if (poller == null) return false;
+            String userName = poller.getUserName(dn);
+            return userName != null && poller.materializeIfMissing(userName);
+        } catch (Exception e) {
+            LOG.error("Unable to refresh " + dn + " on demand", e);
+            return false;
+        }
+    }
+
+    /**
+     * Refreshes the user after a failed verification, in case its access key has been rotated since the last poll.
+     *
+     * @return the refreshed entry, or null if the access key has not changed and the bind must fail
+     */
+    private Entry refreshOnMismatch(Dn dn, Entry userEntry) {
+        if (!getConfig().onDemandRefresh || userEntry.hasObjectClass("iamrole")) return null;
+        try {
+            LDAPIAMPoller poller = getPoller(dn);
+            if (poller == null) return null;
+            String userName = poller.getUserName(dn);
+            if (userName == null || !poller.refreshOnDemand(userName)) return null;
+            Entry refreshed = lookupEntry(dn);
+            Attribute oldKey = userEntry.get("accessKey");
+            Attribute newKey = refreshed.get("accessKey");
+            if (newKey == null || newKey.equals(oldKey)) return null;
+            LOG.info("Access key of " + userName + " has changed, verifying the bind again");
+            return refreshed;
+        } catch (LdapNoSuchObjectException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.error("Unable to refresh " + dn + " on demand", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the entry bound to, from the account entry cache of its poller if possible
+     */
+    private Entry lookupEntry(Dn dn) throws LdapException {
+        LDAPIAMPoller poller = disabled ? null : getPoller(dn);
+        AccountEntryCache cache = poller != null ? poller.getAccountEntries() : null;
+        if (cache != null && cache.isActive()) {
+            Entry cached = cache.get(dn);
+            if (cached != null) return cached;
+        }
+        long generation = cache != null ? cache.getGeneration() : 0;
+        LookupOperationContext lookupContext = new LookupOperationContext( getDirectoryService().getAdminSession(),
+                dn, SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
         Entry userEntry = getDirectoryService().getPartitionNexus().lookup( lookupContext );
-        return userEntry.hasObjectClass("iamaccount");
+        if (userEntry == null) {
+            throw new LdapNoSuchObjectException("No entry " + dn);
+        }
+        if (cache != null && userEntry.hasObjectClass("iamaccount")) {
+            cache.put(userEntry, generation);
+        }
+        return userEntry;
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.auth;
+
+import com.denismo.aws.iam.AccountEntryCache;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+
+/**
+ * Keeps an {@link AccountEntryCache} in line with the directory: every write, by the poller or by anyone else,
+ * drops the entries it touches once it has been applied.
+ */
+public class AccountEntryInterceptor extends BaseInterceptor {
+    private final AccountEntryCache cache;
+
+    /**
+     * @param name distinguishes the interceptors of the pollers of different accounts
+     */
+    public AccountEntryInterceptor(AccountEntryCache cache, String name) {
+        super("iamAccountEntryInterceptor-" + name);
+        this.cache = cache;
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        try {
+            next(addContext);
+        } finally {
+            cache.invalidate(addContext.getDn());
+        }
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        try {
+            next(modifyContext);
+        } finally {
+            cache.invalidate(modifyContext.getDn());
+        }
+    }
+
+    @Override
+    public void delete(DeleteOperationContext deleteContext) throws LdapException {
+        try {
+            next(deleteContext);
+        } finally {
+            cache.invalidate(deleteContext.getDn());
+        }
+    }
+
+    @Override
+    public void move(MoveOperationContext moveContext) throws LdapException {
+        try {
+            next(moveContext);
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void moveAndRename(MoveAndRenameOperationContext moveAndRenameContext) throws LdapException {
+        try {
+            next(moveAndRenameContext);
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void rename(RenameOperationContext renameContext) throws LdapException {
+        try {
+            next(renameContext);
+        } finally {
+            cache.clear();
+        }
+    }
+}
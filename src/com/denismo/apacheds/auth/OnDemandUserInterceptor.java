@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.auth;
+
+import com.denismo.aws.iam.LDAPIAMPoller;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Makes sure a user looked up by uid (as nslcd and sssd do before the bind) exists in the directory, fetching
+ * it from IAM if it has been created after the last poll. A single interceptor serves all the pollers, and hands
+ * the search to the poller of the subtree it is based in.
+ */
+public class OnDemandUserInterceptor extends BaseInterceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(OnDemandUserInterceptor.class);
+    public static final String NAME = "iamOnDemandUserInterceptor";
+
+    /**
+     * The account pollers first, as their subtrees are within the one of the default poller.
+     */
+    private final List<LDAPIAMPoller> pollers = new CopyOnWriteArrayList<LDAPIAMPoller>();
+
+    private OnDemandUserInterceptor() {
+        super(NAME);
+    }
+
+    /**
+     * Adds the poller to the interceptor, registering the interceptor with the directory first if needed.
+     */
+    public static void register(DirectoryService directory, LDAPIAMPoller poller) throws LdapException {
+        synchronized (OnDemandUserInterceptor.class) {
+            OnDemandUserInterceptor interceptor = (OnDemandUserInterceptor) directory.getInterceptor(NAME);
+            if (interceptor == null) {
+                interceptor = new OnDemandUserInterceptor();
+                directory.addLast(interceptor);
+            }
+            if (poller.getAccountId() != null) {
+                interceptor.pollers.add(0, poller);
+            } else {
+                interceptor.pollers.add(poller);
+            }
+        }
+    }
+
+    /**
+     * Removes the poller from the interceptor, removing the interceptor from the directory once it serves no poller.
+     */
+    public static void unregister(DirectoryService directory, LDAPIAMPoller poller) throws LdapException {
+        synchronized (OnDemandUserInterceptor.class) {
+            OnDemandUserInterceptor interceptor = (OnDemandUserInterceptor) directory.getInterceptor(NAME);
+            if (interceptor == null) return;
+            interceptor.pollers.remove(poller);
+            if (interceptor.pollers.isEmpty()) {
+                directory.remove(NAME);
+            }
+        }
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        String userName = getRequestedUser(searchContext.getFilter());
+        LDAPIAMPoller poller = userName != null ? getPoller(searchContext.getDn()) : null;
+        if (poller != null) {
+            try {
+                poller.materializeIfMissing(userName);
+            } catch (Exception e) {
+                LOG.error("Unable to refresh user " + userName + " on demand", e);
+            }
+        }
+        return next(searchContext);
+    }
+
+    /**
+     * @return the poller of the subtree the search is based in. A search based above all the subtrees goes to the
+     * default poller, the accounts synced through roles are only served to searches based within their subtree.
+     */
+    private LDAPIAMPoller getPoller(Dn base) throws LdapException {
+        for (LDAPIAMPoller poller : pollers) {
+            if (poller.contains(base)) return poller;
+        }
+        for (LDAPIAMPoller poller : pollers) {
+            if (poller.getAccountId() == null && poller.isWithin(base)) return poller;
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the uid equality assertion of the filter, on its own or within an AND, or null
+     */
+    private String getRequestedUser(ExprNode filter) {
+        if (filter instanceof EqualityNode) {
+            EqualityNode<?> node = (EqualityNode<?>) filter;
+            if (node.getAttributeType() != null && SchemaConstants.UID_AT_OID.equals(node.getAttributeType().getOid())) {
+                return node.getValue().getString();
+            }
+        } else if (filter instanceof AndNode) {
+            for (ExprNode child : ((AndNode) filter).getChildren()) {
+                String userName = getRequestedUser(child);
+                if (userName != null) return userName;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.apacheds.auth;
+
+import com.denismo.aws.iam.ExpiringCache;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Remembers the binds which have been verified against AWS, so the clients binding again and again with the same
+ * credentials do not wait for AWS every time. Only a salted PBKDF2 hash of the secret is kept, in memory.
+ * <p>
+ * A cached verification only holds as long as the entry keeps the access key it was made against: once the poller
+ * writes a new access key the next bind is verified against AWS again.
+ */
+public class VerificationCache {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = 1000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static class Verification {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final String accessKey;
+
+        private Verification(byte[] salt, byte[] hash, String accessKey) {
+            this.salt = salt;
+            this.hash = hash;
+            this.accessKey = accessKey;
+        }
+    }
+
+    private final ExpiringCache<String, Verification> verifications;
+
+    /**
+     * @param ttlSeconds how long a successful verification is trusted
+     * @param maxSize    the maximum number of entries remembered
+     */
+    public VerificationCache(int ttlSeconds, int maxSize) {
+        this.verifications = new ExpiringCache<String, Verification>(ttlSeconds, maxSize);
+    }
+
+    /**
+     * @return true if the same secret has been verified for the entry, with its current access key, within the TTL
+     */
+    public boolean isVerified(Entry userEntry, String secret) throws GeneralSecurityException, LdapInvalidAttributeValueException {
+        String key = userEntry.getDn().getNormName();
+        Verification verification = verifications.get(key);
+        if (verification == null) return false;
+        if (!equal(verification.accessKey, getAccessKey(userEntry))) {
+            verifications.remove(key);
+            return false;
+        }
+        return MessageDigest.isEqual(verification.hash, hash(secret, verification.salt));
+    }
+
+    public void verified(Entry userEntry, String secret) throws GeneralSecurityException, LdapInvalidAttributeValueException {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        verifications.put(userEntry.getDn().getNormName(),
+                new Verification(salt, hash(secret, salt), getAccessKey(userEntry)));
+    }
+
+    private static String getAccessKey(Entry userEntry) throws LdapInvalidAttributeValueException {
+        Attribute accessKey = userEntry.get("accessKey");
+        return accessKey != null ? accessKey.getString() : null;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static byte[] hash(String secret, byte[] salt) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, ITERATIONS, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
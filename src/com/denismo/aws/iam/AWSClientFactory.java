@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClientBuilder;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the AWS clients of the bridge from the configuration. The clients are meant to be created once and
+ * shared, so the connection pool and TLS sessions survive between the calls.
+ */
+public class AWSClientFactory {
+    /**
+     * Retries of a bind verification, all within the verification deadline.
+     */
+    private static final int VERIFY_RETRIES = 2;
+
+    /**
+     * Retries transient errors, but leaves throttling to the {@link AdaptiveRateLimiter}, which needs to see
+     * it in order to slow down.
+     */
+    private static final RetryPolicy.RetryCondition RETRY_CONDITION = new RetryPolicy.RetryCondition() {
+        @Override
+        public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception, int retries) {
+            if (exception instanceof AmazonServiceException
+                    && AdaptiveRateLimiter.isThrottling((AmazonServiceException) exception)) {
+                return false;
+            }
+            return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retries);
+        }
+    };
+
+    public static ClientConfiguration createClientConfiguration(AWSIAMAuthenticator.Config config) {
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        clientConfig.setMaxConnections(config.awsMaxConnections);
+        clientConfig.setUseTcpKeepAlive(true);
+        clientConfig.setConnectionMaxIdleMillis(60000);
+        clientConfig.setRetryPolicy(new RetryPolicy(RETRY_CONDITION, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+                config.awsMaxErrorRetry, true));
+        return clientConfig;
+    }
+
+    /**
+     * @return the configuration of the clients verifying binds, which retry transient errors a couple of times but
+     * give up on AWS within the verification deadline
+     */
+    public static ClientConfiguration createVerifyClientConfiguration(AWSIAMAuthenticator.Config config) {
+        int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(config.verifyTimeout);
+        int attemptMillis = timeoutMillis / (VERIFY_RETRIES + 1);
+        return new ClientConfiguration()
+                .withMaxConnections(Math.max(1, config.verifyConcurrency))
+                .withTcpKeepAlive(true)
+                .withConnectionTimeout(attemptMillis)
+                .withSocketTimeout(attemptMillis)
+                .withClientExecutionTimeout(timeoutMillis)
+                .withMaxErrorRetry(VERIFY_RETRIES);
+    }
+
+    public static AmazonIdentityManagement createIAMClient(AWSCredentialsProvider credentials,
+                                                                AWSIAMAuthenticator.Config config) {
+        return AmazonIdentityManagementClientBuilder.standard()
+                .withCredentials(credentials)
+                .withClientConfiguration(createClientConfiguration(config))
+                // IAM is a global service, signed for us-east-1
+                .withRegion(Regions.US_EAST_1)
+                .build();
+    }
+
+    /**
+     * @return the credentials of the role, assumed with the default credentials
+     */
+    public static AWSCredentialsProvider createAssumeRoleCredentials(String roleArn, AWSIAMAuthenticator.Config config) {
+        AWSSecurityTokenService sts = AWSSecurityTokenServiceClientBuilder.standard()
+                .withCredentials(new DefaultAWSCredentialsProviderChain())
+                .withClientConfiguration(createClientConfiguration(config))
+                .withRegion(Regions.US_EAST_1)
+                .build();
+        STSAssumeRoleSessionCredentialsProvider.Builder builder =
+                new STSAssumeRoleSessionCredentialsProvider.Builder(roleArn, "iam-ldap-bridge")
+                        .withStsClient(sts);
+        if (config.accountExternalId != null && !config.accountExternalId.isEmpty()) {
+            builder.withExternalId(config.accountExternalId);
+        }
+        return builder.build();
+    }
+}
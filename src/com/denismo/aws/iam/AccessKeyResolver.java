@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the active access key of a user. Without a credential report every lookup is a ListAccessKeys call. With
+ * the report, the key found by the last call is reused for as long as the report shows the keys of the user
+ * unchanged, and users without an active key need no call at all.
+ * <p>
+ * A key rotated after the report was generated is only seen once a newer report is fetched, or when the user
+ * is refreshed on its own, which always lists the keys.
+ */
+public class AccessKeyResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(AccessKeyResolver.class);
+    /**
+     * IAM does not generate a new report more often than this.
+     */
+    private static final long MIN_REPORT_AGE_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+    private static class KnownKey {
+        private final String keyState;
+        private final String accessKey;
+
+        private KnownKey(String keyState, String accessKey) {
+            this.keyState = keyState;
+            this.accessKey = accessKey;
+        }
+    }
+
+    private final AmazonIdentityManagement client;
+    private final AdaptiveRateLimiter limiter;
+    private final long reportMaxAgeMillis;
+    private final Map<String, KnownKey> knownKeys = new ConcurrentHashMap<String, KnownKey>();
+    private volatile CredentialReport report;
+
+    /**
+     * @param reportMaxAge the age, in seconds, after which a new credential report is fetched, or 0 to list the keys
+     *                     of every user instead. Raised to four hours, the age at which IAM generates a new report.
+     */
+    public AccessKeyResolver(AmazonIdentityManagement client, AdaptiveRateLimiter limiter, int reportMaxAge) {
+        this.client = client;
+        this.limiter = limiter;
+        this.reportMaxAgeMillis = reportMaxAge > 0
+                ? Math.max(MIN_REPORT_AGE_MILLIS, TimeUnit.SECONDS.toMillis(reportMaxAge)) : 0;
+    }
+
+    /**
+     * Fetches a new credential report if the current one is older than the configured age. Called at the start of
+     * every sync. The sync does not wait for IAM to generate the report: until it is ready the current report is
+     * kept and the generation is checked again at the next sync. If the report cannot be fetched the keys are listed
+     * for every user until it can.
+     */
+    public void refreshReport() {
+        if (reportMaxAgeMillis == 0) return;
+        CredentialReport current = report;
+        if (current != null && current.getAge() < reportMaxAgeMillis) return;
+        try {
+            if (!CredentialReport.generate(client, limiter)) {
+                LOG.debug("The credential report is being generated, keeping the current one");
+                return;
+            }
+            CredentialReport fetched = CredentialReport.fetch(client, limiter);
+            if (current != null && current.getGeneratedTime() != null && fetched.getGeneratedTime() != null
+                    && !fetched.getGeneratedTime().after(current.getGeneratedTime())) {
+                LOG.debug("The credential report has not been generated again, keeping the current one");
+                return;
+            }
+            report = fetched;
+        } catch (Exception e) {
+            LOG.warn("Unable to fetch the credential report, listing the access keys of every user", e);
+            report = null;
+        }
+    }
+
+    /**
+     * @return the active access key of the user, using the credential report to avoid the call where possible
+     */
+    public String getActiveAccessKey(String userName) throws Exception {
+        CredentialReport current = report;
+        String keyState = current != null ? current.getKeyState(userName) : null;
+        if (keyState != null) {
+            // A key listed since the report was generated is newer than what the report shows
+            KnownKey known = knownKeys.get(userName);
+            if (known != null && keyState.equals(known.keyState)) {
+                return known.accessKey;
+            }
+            if (current.hasNoActiveKey(userName)) {
+                knownKeys.remove(userName);
+                return null;
+            }
+        }
+        return listActiveAccessKey(userName, keyState);
+    }
+
+    /**
+     * @return the active access key of the user, always listed from IAM
+     */
+    public String getCurrentAccessKey(String userName) throws Exception {
+        CredentialReport current = report;
+        return listActiveAccessKey(userName, current != null ? current.getKeyState(userName) : null);
+    }
+
+    public void forget(String userName) {
+        knownKeys.remove(userName);
+    }
+
+    private String listActiveAccessKey(String userName, String keyState) throws Exception {
+        String accessKey = IAMSnapshot.getActiveAccessKeyTask(client, limiter, userName).call();
+        if (keyState != null) {
+            knownKeys.put(userName, new KnownKey(keyState, accessKey));
+        } else {
+            knownKeys.remove(userName);
+        }
+        return accessKey;
+    }
+}
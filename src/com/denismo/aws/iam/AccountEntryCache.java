@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The iamaccount entries of a poller's subtree, by normalized DN, reduced to what a bind needs: the object classes,
+ * the uid, the access key and the account number. The poller writes through the entries it adds, updates and
+ * deletes, and any other write to the directory invalidates the entry written, so the cache never serves an entry
+ * older than the last write to it. When full, the least recently used entry is evicted.
+ * <p>
+ * A lookup racing with a write is detected through the generation, which every write advances, and is not cached.
+ */
+public class AccountEntryCache {
+    private static final String[] ATTRIBUTES = {"uid", "accessKey", "accountNumber"};
+
+    private static class Account {
+        private final Dn dn;
+        private final String[] objectClasses;
+        private final String[] values;
+
+        private Account(Entry entry) throws LdapException {
+            this.dn = entry.getDn();
+            List<String> classes = new ArrayList<String>();
+            for (Value<?> value : entry.get(SchemaConstants.OBJECT_CLASS_AT)) {
+                classes.add(value.getString());
+            }
+            this.objectClasses = classes.toArray(new String[classes.size()]);
+            this.values = new String[ATTRIBUTES.length];
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                Attribute attribute = entry.get(ATTRIBUTES[i]);
+                values[i] = attribute != null ? attribute.getString() : null;
+            }
+        }
+
+        private Entry toEntry(SchemaManager schemaManager) throws LdapException {
+            Entry entry = new DefaultEntry(schemaManager, dn);
+            entry.put(SchemaConstants.OBJECT_CLASS_AT, objectClasses);
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                if (values[i] != null) entry.put(ATTRIBUTES[i], values[i]);
+            }
+            return entry;
+        }
+    }
+
+    private final SchemaManager schemaManager;
+    private final Map<String, Account> entries;
+    private long generation;
+    private volatile boolean active;
+
+    /**
+     * @param maxSize the maximum number of entries
+     */
+    public AccountEntryCache(SchemaManager schemaManager, final int maxSize) {
+        this.schemaManager = schemaManager;
+        this.entries = new LinkedHashMap<String, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Account> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true once writes are being tracked, only then can the cache be used
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public synchronized void setActive(boolean active) {
+        this.active = active;
+        entries.clear();
+    }
+
+    /**
+     * @return the generation to pass to {@link #put} for an entry looked up from now on
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the entry, with the attributes a bind needs only, or null if it is not cached
+     */
+    public Entry get(Dn dn) throws LdapException {
+        if (!active) return null;
+        Account account;
+        synchronized (this) {
+            account = entries.get(dn.getNormName());
+        }
+        return account != null ? account.toEntry(schemaManager) : null;
+    }
+
+    /**
+     * Caches the entry looked up, unless the directory has been written to since the generation was taken.
+     */
+    public void put(Entry entry, long lookupGeneration) throws LdapException {
+        if (!active) return;
+        Account account = new Account(entry);
+        synchronized (this) {
+            if (generation == lookupGeneration) {
+                entries.put(entry.getDn().getNormName(), account);
+            }
+        }
+    }
+
+    /**
+     * Caches the entry just written by the poller.
+     */
+    public void update(Entry entry) throws LdapException {
+        if (!active) return;
+        Account account = new Account(entry);
+        synchronized (this) {
+            generation++;
+            entries.put(entry.getDn().getNormName(), account);
+        }
+    }
+
+    public synchronized void invalidate(Dn dn) {
+        generation++;
+        entries.remove(dn.getNormName());
+    }
+
+    /**
+     * Drops everything, for the writes which may affect several entries, like a rename of a parent.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
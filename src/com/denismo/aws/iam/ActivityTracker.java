@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers when each account last tried to bind. Entries older than the activity window are pruned
+ * whenever the active accounts are listed, so the table only ever holds the accounts actually in use.
+ */
+public class ActivityTracker {
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<String, Long>();
+    private final long windowMillis;
+
+    /**
+     * @param windowSeconds how long an account stays active after its last bind
+     */
+    public ActivityTracker(long windowSeconds) {
+        this.windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+    }
+
+    public void touch(String userName) {
+        lastSeen.put(userName, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the accounts which have bound within the activity window
+     */
+    public List<String> getActiveUsers() {
+        long cutoff = System.currentTimeMillis() - windowMillis;
+        List<String> active = new ArrayList<String>();
+        for (Iterator<Map.Entry<String, Long>> it = lastSeen.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() < cutoff) {
+                it.remove();
+            } else {
+                active.add(entry.getKey());
+            }
+        }
+        return active;
+    }
+
+    public int size() {
+        return lastSeen.size();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the sync cycles one after another, scheduling the next cycle only once the previous one has finished,
+ * so the cycles never overlap however long they take. The period adapts to what the last cycle saw: it is halved
+ * after a cycle which found changes, doubled after a cycle which was throttled by IAM, and grows slowly while IAM
+ * is stable, always staying within the configured bounds. Every delay is randomized by the jitter, so a fleet of
+ * instances started together drifts apart instead of polling IAM at the same moment.
+ */
+public class AdaptivePollScheduler implements AdaptivePollSchedulerMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptivePollScheduler.class);
+
+    /**
+     * A sync cycle.
+     */
+    public interface Cycle {
+        /**
+         * @return the statistics of the cycle, or null if it failed
+         */
+        SyncStats run();
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Cycle cycle;
+    private final AdaptiveRateLimiter limiter;
+    private final long minPeriod;
+    private final long maxPeriod;
+    private final double jitter;
+    private final Random random = new Random();
+    private final String name;
+
+    private volatile long period;
+    private volatile long nextDelay;
+    private volatile String decision = "initial";
+    private volatile long lastCycleMillis;
+    private volatile long lastChanges;
+    private volatile long lastThrottles;
+    private volatile long cycles;
+    private volatile boolean stopped;
+    private ScheduledFuture<?> next;
+    private ObjectName objectName;
+
+    /**
+     * @param period    the initial period, in seconds
+     * @param minPeriod the shortest period, in seconds
+     * @param maxPeriod the longest period, in seconds
+     * @param jitter    the fraction of the period every delay is randomized by
+     * @param name      the name the scheduler is registered under in JMX
+     */
+    public AdaptivePollScheduler(ScheduledExecutorService executor, Cycle cycle, AdaptiveRateLimiter limiter,
+                                 long period, long minPeriod, long maxPeriod, double jitter, String name) {
+        this.executor = executor;
+        this.cycle = cycle;
+        this.limiter = limiter;
+        this.minPeriod = Math.max(1, Math.min(minPeriod, period));
+        this.maxPeriod = Math.max(maxPeriod, period);
+        this.period = period;
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+        this.name = name;
+    }
+
+    /**
+     * Schedules the first cycle and registers the scheduler in JMX.
+     *
+     * @param initialDelay the delay before the first cycle, in seconds, before jitter
+     */
+    public void start(long initialDelay) {
+        try {
+            ObjectName objectName = new ObjectName("com.denismo.aws.iam:type=PollScheduler,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            synchronized (this) {
+                this.objectName = objectName;
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to register the poll scheduler in JMX", e);
+        }
+        scheduleNext(initialDelay + (long) (random.nextDouble() * jitter * period));
+    }
+
+    /**
+     * Cancels the next cycle and unregisters the scheduler from JMX.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.warn("Unable to unregister the poll scheduler from JMX", e);
+            }
+            objectName = null;
+        }
+    }
+
+    private synchronized void scheduleNext(long delay) {
+        if (stopped) return;
+        nextDelay = delay;
+        next = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runCycle();
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    private void runCycle() {
+        long throttlesBefore = limiter.getThrottleCount();
+        long start = System.currentTimeMillis();
+        SyncStats stats = null;
+        try {
+            stats = cycle.run();
+        } catch (Throwable e) {
+            LOG.error("Exception in sync cycle", e);
+        } finally {
+            lastCycleMillis = System.currentTimeMillis() - start;
+            cycles++;
+            adapt(stats, limiter.getThrottleCount() - throttlesBefore);
+            scheduleNext(jittered(period));
+        }
+    }
+
+    private void adapt(SyncStats stats, long throttles) {
+        lastThrottles = throttles;
+        lastChanges = stats != null ? stats.getChanges() : 0;
+        if (stats == null) {
+            decision = "failed";
+        } else if (throttles > 0) {
+            decision = "throttled";
+            period = Math.min(maxPeriod, period * 2);
+        } else if (lastChanges > 0) {
+            decision = "changes";
+            period = Math.max(minPeriod, period / 2);
+        } else {
+            decision = "stable";
+            period = Math.min(maxPeriod, period + Math.max(1, period / 4));
+        }
+        LOG.debug("Next sync period " + period + "s (" + decision + ", " + lastChanges + " changes, "
+                + throttles + " throttled calls in " + lastCycleMillis + "ms)");
+    }
+
+    private long jittered(long delay) {
+        double factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.max(1, Math.round(delay * factor));
+    }
+
+    @Override
+    public long getPeriodSeconds() {
+        return period;
+    }
+
+    @Override
+    public long getNextDelaySeconds() {
+        return nextDelay;
+    }
+
+    @Override
+    public String getDecision() {
+        return decision;
+    }
+
+    @Override
+    public long getLastCycleMillis() {
+        return lastCycleMillis;
+    }
+
+    @Override
+    public long getLastChanges() {
+        return lastChanges;
+    }
+
+    @Override
+    public long getLastThrottles() {
+        return lastThrottles;
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+/**
+ * Current state and last decision of the {@link AdaptivePollScheduler}, exposed over JMX.
+ */
+public interface AdaptivePollSchedulerMXBean {
+    /**
+     * @return the current poll period before jitter, in seconds
+     */
+    long getPeriodSeconds();
+
+    /**
+     * @return the delay before the next cycle, including jitter, in seconds
+     */
+    long getNextDelaySeconds();
+
+    /**
+     * @return why the period was last changed: changes, stable, throttled or failed
+     */
+    String getDecision();
+
+    long getLastCycleMillis();
+
+    long getLastChanges();
+
+    long getLastThrottles();
+
+    long getCycles();
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.AmazonServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limiter shared by all the threads calling IAM. The allowed rate grows additively after every successful
+ * call and is halved whenever IAM throttles a call (AIMD), so the poller runs as fast as IAM allows without
+ * producing a storm of throttling errors.
+ */
+public class AdaptiveRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+    private static final int MAX_RETRIES = 5;
+
+    private final double minRate;
+    private final double maxRate;
+    private final double increment;
+    private double rate;
+    private long nextPermitNanos;
+    private final AtomicLong throttles = new AtomicLong();
+
+    /**
+     * @param minRate the lowest rate, calls per second
+     * @param maxRate the highest rate, calls per second
+     */
+    public AdaptiveRateLimiter(double minRate, double maxRate) {
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increment = Math.max(maxRate / 100, 0.1);
+        this.rate = maxRate;
+        this.nextPermitNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the call is allowed by the current rate.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long permit = Math.max(now, nextPermitNanos);
+            nextPermitNanos = permit + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            waitNanos = permit - now;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + increment);
+    }
+
+    public synchronized void onThrottle() {
+        rate = Math.max(minRate, rate / 2);
+        throttles.incrementAndGet();
+        LOG.debug("IAM throttled the call, reducing the rate to " + rate + " calls/s");
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the total number of throttled calls seen by the limiter
+     */
+    public long getThrottleCount() {
+        return throttles.get();
+    }
+
+    /**
+     * Executes the IAM call within the rate limit, retrying it if IAM throttles it.
+     */
+    public <T> T execute(Callable<T> call) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            acquire();
+            try {
+                T result = call.call();
+                onSuccess();
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!isThrottling(e) || attempt >= MAX_RETRIES) throw e;
+                onThrottle();
+            }
+        }
+    }
+
+    public static boolean isThrottling(AmazonServiceException e) {
+        String code = e.getErrorCode();
+        return "Throttling".equals(code) || "ThrottlingException".equals(code)
+                || "RequestLimitExceeded".equals(code) || e.getStatusCode() == 429;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the verifications of another validator on a dedicated executor, so a slow or unreachable AWS endpoint
+ * does not hold the LDAP request threads. Every verification has a deadline, and the number of verifications
+ * in progress is bounded: once the bound is reached, or the deadline has passed, the bind fails at once.
+ * <p>
+ * A verification which has passed its deadline keeps its permit until the call to AWS actually returns,
+ * so a hanging endpoint cannot accumulate more than the bound of stuck threads.
+ */
+public class BoundedValidator implements _IAMPasswordValidator {
+    private static final Logger LOG = LoggerFactory.getLogger(BoundedValidator.class);
+
+    private final _IAMPasswordValidator delegate;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final long timeoutMillis;
+
+    /**
+     * @param timeoutSeconds the deadline of a single verification
+     * @param concurrency    the maximum number of verifications in progress
+     */
+    public BoundedValidator(_IAMPasswordValidator delegate, int timeoutSeconds, int concurrency) {
+        this.delegate = delegate;
+        this.executor = createExecutor();
+        this.permits = new Semaphore(Math.max(1, concurrency));
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per verification where the JVM has them, otherwise a pool of
+     * daemon threads. Either way the number of threads is bounded by the permits.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOG.debug("Verifying binds on virtual threads");
+            return executor;
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(new NamedThreadFactory("iam-verify"));
+        }
+    }
+
+    @Override
+    public boolean verifyIAMPassword(final Entry user, final String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
+        if (!permits.tryAcquire()) {
+            LOG.warn("Too many binds are being verified, rejecting " + user.getDn());
+            throw new LdapAuthenticationException("Too many binds are being verified against AWS");
+        }
+        // Claimed by whichever comes first - the task starting, or the caller giving up on a task not yet started
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (!claimed.compareAndSet(false, true)) return false;
+                    try {
+                        return delegate.verifyIAMPassword(user, pw);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(result, claimed);
+            LOG.warn("Verification of " + user.getDn() + " did not complete within " + timeoutMillis + "ms");
+            throw new LdapAuthenticationException("AWS did not verify the bind in time");
+        } catch (InterruptedException e) {
+            abandon(result, claimed);
+            Thread.currentThread().interrupt();
+            throw new LdapAuthenticationException("Interrupted while verifying the bind");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LdapInvalidAttributeValueException) throw (LdapInvalidAttributeValueException) cause;
+            if (cause instanceof LdapAuthenticationException) throw (LdapAuthenticationException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Cancels a verification the caller no longer waits for. A cancelled task which has not started never runs,
+     * so its permit is released here; a running task keeps its permit until the call to AWS returns.
+     */
+    private void abandon(Future<Boolean> result, AtomicBoolean claimed) {
+        result.cancel(true);
+        if (claimed.compareAndSet(false, true)) {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        delegate.shutdown();
+    }
+}
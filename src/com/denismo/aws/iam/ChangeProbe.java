@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Cheap check of whether IAM has changed since the last sync. It costs three calls regardless of the size of the
+ * account: the account summary (user, group, key and MFA counts) and the first pages of ListUsers and ListGroups.
+ * <p>
+ * Changes which keep all of those intact - like a user moving between groups or an access key being rotated -
+ * are not visible to the probe, which is why the poller still runs a full sync every few cycles.
+ */
+public class ChangeProbe {
+    private final AmazonIdentityManagement client;
+    private final AdaptiveRateLimiter limiter;
+
+    public ChangeProbe(AmazonIdentityManagement client, AdaptiveRateLimiter limiter) {
+        this.client = client;
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return a fingerprint which differs whenever any of the probed values differs
+     */
+    public String probe() throws Exception {
+        List<String> values = new ArrayList<String>();
+        Map<String, Integer> summary = limiter.execute(new Callable<Map<String, Integer>>() {
+            @Override
+            public Map<String, Integer> call() {
+                return client.getAccountSummary().getSummaryMap();
+            }
+        });
+        for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(summary).entrySet()) {
+            values.add(entry.getKey() + "=" + entry.getValue());
+        }
+        ListUsersResult users = limiter.execute(new Callable<ListUsersResult>() {
+            @Override
+            public ListUsersResult call() {
+                return client.listUsers();
+            }
+        });
+        for (User user : users.getUsers()) {
+            values.add(user.getUserId() + user.getPath() + user.getUserName());
+        }
+        ListGroupsResult groups = limiter.execute(new Callable<ListGroupsResult>() {
+            @Override
+            public ListGroupsResult call() {
+                return client.listGroups();
+            }
+        });
+        for (Group group : groups.getGroups()) {
+            values.add(group.getGroupId() + group.getPath() + group.getGroupName());
+        }
+        return FingerprintCache.fingerprint(values);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.GenerateCredentialReportResult;
+import com.amazonaws.services.identitymanagement.model.GetCredentialReportRequest;
+import com.amazonaws.services.identitymanagement.model.GetCredentialReportResult;
+import com.amazonaws.services.identitymanagement.model.GenerateCredentialReportRequest;
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * The access key columns of the IAM credential report: for every user of the account, whether each of its two
+ * access keys is active and when it was last rotated. The report is a single CSV document for the whole account,
+ * so one call tells which users had their keys changed.
+ * <p>
+ * The report does not contain the access key IDs. It only tells when the keys of a user have to be listed again.
+ */
+public class CredentialReport {
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialReport.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] KEY_COLUMNS = {"access_key_1_active", "access_key_1_last_rotated",
+            "access_key_2_active", "access_key_2_last_rotated"};
+
+    private final Date generatedTime;
+    private final Map<String, String> keyStates = new HashMap<String, String>();
+
+    CredentialReport(Date generatedTime) {
+        this.generatedTime = generatedTime;
+    }
+
+    public Date getGeneratedTime() {
+        return generatedTime;
+    }
+
+    /**
+     * @return the age of the report, in milliseconds
+     */
+    public long getAge() {
+        return generatedTime != null ? System.currentTimeMillis() - generatedTime.getTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the state of the access keys of the user - a value which changes whenever a key is created, deleted,
+     * activated or deactivated - or null if the user is not in the report
+     */
+    public String getKeyState(String userName) {
+        return keyStates.get(userName);
+    }
+
+    /**
+     * @return true if the report has the user and shows none of its keys as active
+     */
+    public boolean hasNoActiveKey(String userName) {
+        String state = keyStates.get(userName);
+        return state != null && !state.contains("true");
+    }
+
+    public int size() {
+        return keyStates.size();
+    }
+
+    /**
+     * Asks IAM to generate the report, without waiting for it. IAM only generates a new report if the last one is
+     * more than four hours old.
+     *
+     * @return true if the report is ready to be fetched, false if IAM is still generating it
+     */
+    public static boolean generate(final AmazonIdentityManagement client, AdaptiveRateLimiter limiter) throws Exception {
+        GenerateCredentialReportResult res = limiter.execute(new Callable<GenerateCredentialReportResult>() {
+            @Override
+            public GenerateCredentialReportResult call() {
+                return client.generateCredentialReport(new GenerateCredentialReportRequest());
+            }
+        });
+        return "COMPLETE".equals(res.getState());
+    }
+
+    /**
+     * Downloads the last report generated. See {@link #generate}.
+     */
+    public static CredentialReport fetch(final AmazonIdentityManagement client, AdaptiveRateLimiter limiter) throws Exception {
+        GetCredentialReportResult res = limiter.execute(new Callable<GetCredentialReportResult>() {
+            @Override
+            public GetCredentialReportResult call() {
+                return client.getCredentialReport(new GetCredentialReportRequest());
+            }
+        });
+        CredentialReport report = parse(BinaryUtils.toStream(res.getContent()), res.getGeneratedTime());
+        LOG.debug("Fetched credential report of " + report.size() + " users generated at " + report.getGeneratedTime());
+        return report;
+    }
+
+    /**
+     * Parses the report line by line, keeping only the access key columns.
+     */
+    static CredentialReport parse(InputStream in, Date generatedTime) throws IOException {
+        CredentialReport report = new CredentialReport(generatedTime);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        try {
+            String line = reader.readLine();
+            if (line == null) return report;
+            List<String> header = Arrays.asList(split(line));
+            int[] columns = new int[KEY_COLUMNS.length];
+            for (int i = 0; i < KEY_COLUMNS.length; i++) {
+                columns[i] = header.indexOf(KEY_COLUMNS[i]);
+                if (columns[i] < 0) throw new IOException("The credential report has no " + KEY_COLUMNS[i] + " column");
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = split(line);
+                // IAM user names may contain commas, which the report does not quote. They shift the columns
+                // following the user name and the ARN, which always come first.
+                int shift = fields.length - header.size();
+                if (shift < 0 || shift % 2 != 0) {
+                    LOG.warn("Skipping malformed credential report line: " + line);
+                    continue;
+                }
+                StringBuilder userName = new StringBuilder(fields[0]);
+                for (int i = 1; i <= shift / 2; i++) {
+                    userName.append(',').append(fields[i]);
+                }
+                if ("<root_account>".equals(userName.toString())) continue;
+                StringBuilder state = new StringBuilder();
+                for (int column : columns) {
+                    if (state.length() > 0) state.append('|');
+                    state.append(fields[column + shift]);
+                }
+                report.keyStates.put(userName.toString(), state.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return report;
+    }
+
+    private static String[] split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+}
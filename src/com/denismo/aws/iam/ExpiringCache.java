@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size bounded cache whose entries expire a fixed time after they have been written. When full,
+ * the least recently used entry is evicted.
+ */
+public class ExpiringCache<K, V> {
+    private static class Item<V> {
+        private final V value;
+        private final long expires;
+
+        private Item(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlNanos;
+    private final Map<K, Item<V>> items;
+
+    /**
+     * @param ttlSeconds how long the entries stay in the cache
+     * @param maxSize    the maximum number of entries
+     */
+    public ExpiringCache(long ttlSeconds, final int maxSize) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.items = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        Item<V> item = items.get(key);
+        if (item == null) return null;
+        if (item.expires - System.nanoTime() <= 0) {
+            items.remove(key);
+            return null;
+        }
+        return item.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        items.put(key, new Item<V>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized void remove(K key) {
+        items.remove(key);
+    }
+
+    public synchronized void clear() {
+        items.clear();
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers a content hash of the IAM state last written to every LDAP entry, so an entry whose
+ * desired state has not changed can be skipped without reading or writing the directory.
+ */
+public class FingerprintCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Computes the fingerprint of the given values. The order of the values is significant.
+     */
+    public static String fingerprint(Iterable<String> values) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String value : values) {
+            if (value != null) {
+                digest.update(value.getBytes(UTF8));
+            }
+            // Separator, so that ["ab", "c"] and ["a", "bc"] differ
+            digest.update((byte) 0);
+        }
+        return Base64.encodeBase64String(digest.digest());
+    }
+
+    public boolean matches(String key, String fingerprint) {
+        return fingerprint.equals(fingerprints.get(key));
+    }
+
+    public void put(String key, String fingerprint) {
+        fingerprints.put(key, fingerprint);
+    }
+
+    public void remove(String key) {
+        fingerprints.remove(key);
+    }
+
+    public int size() {
+        return fingerprints.size();
+    }
+
+    public Map<String, String> getAll() {
+        return Collections.unmodifiableMap(fingerprints);
+    }
+
+    public void putAll(Map<String, String> values) {
+        fingerprints.putAll(values);
+    }
+}
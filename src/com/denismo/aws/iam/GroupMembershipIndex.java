@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Group to members index collected from IAM during a sync cycle. Only the users whose membership has been
+ * recorded are managed by the index - the memberUid values of any other user are left untouched when the
+ * groups are reconciled, so a user which failed to sync keeps its current membership.
+ */
+public class GroupMembershipIndex {
+    public static final String MEMBER_UID = "memberUid";
+
+    private final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+    private final Set<String> managedUsers = new HashSet<String>();
+
+    /**
+     * Records the complete list of groups the user belongs to, replacing the one recorded before. An empty list
+     * removes the user from all groups.
+     */
+    public void setMembership(String userUid, Collection<String> groupNames) {
+        if (!managedUsers.add(userUid)) {
+            for (Set<String> groupMembers : members.values()) {
+                groupMembers.remove(userUid);
+            }
+        }
+        for (String groupName : groupNames) {
+            Set<String> groupMembers = members.get(groupName);
+            if (groupMembers == null) {
+                groupMembers = new HashSet<String>();
+                members.put(groupName, groupMembers);
+            }
+            groupMembers.add(userUid);
+        }
+    }
+
+    public Set<String> getMembers(String groupName) {
+        Set<String> groupMembers = members.get(groupName);
+        return groupMembers != null ? groupMembers : Collections.<String>emptySet();
+    }
+
+    public boolean isEmpty() {
+        return managedUsers.isEmpty();
+    }
+
+    /**
+     * Computes the modifications required to bring the memberUid attribute of the group in line with the index.
+     *
+     * @param groupName     the name (cn) of the group
+     * @param currentMembers the current memberUid attribute of the group entry, may be null
+     * @return the list of modifications, empty if the group is up to date
+     */
+    public List<Modification> getModifications(String groupName, Attribute currentMembers) {
+        Set<String> toAdd = new HashSet<String>(getMembers(groupName));
+        List<String> toRemove = new ArrayList<String>();
+        if (currentMembers != null) {
+            for (Value<?> value : currentMembers) {
+                String userUid = value.getString();
+                if (!toAdd.remove(userUid) && managedUsers.contains(userUid)) {
+                    toRemove.add(userUid);
+                }
+            }
+        }
+        List<Modification> modifications = new ArrayList<Modification>();
+        if (!toAdd.isEmpty()) {
+            modifications.add(new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, MEMBER_UID,
+                    toAdd.toArray(new String[toAdd.size()])));
+        }
+        if (!toRemove.isEmpty()) {
+            modifications.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, MEMBER_UID,
+                    toRemove.toArray(new String[toRemove.size()])));
+        }
+        return modifications;
+    }
+}
@@ -21,20 +21,19 @@ package com.denismo.aws.iam;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
-import org.apache.http.client.CookieStore;
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.HeaderElement;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.cookie.BasicClientCookie;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
@@ -43,6 +42,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: Denis Mikhalkin
@@ -52,23 +52,52 @@ import java.util.*;
 public class IAMAccountPasswordValidator implements _IAMPasswordValidator {
     private static final Logger LOG = LoggerFactory.getLogger(IAMAccountPasswordValidator.class);
     private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_13_3) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/64.0.3282.119 Safari/537.36";
+    private static final long IDLE_CONNECTION_SECONDS = 60;
+
+    private final String signinEndpoint;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    public IAMAccountPasswordValidator() {
+        AWSIAMAuthenticator.Config config = AWSIAMAuthenticator.getConfig();
+        if (config == null) config = new AWSIAMAuthenticator.Config();
+        signinEndpoint = config.signinEndpoint.endsWith("/")
+                ? config.signinEndpoint.substring(0, config.signinEndpoint.length() - 1) : config.signinEndpoint;
+        int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(config.verifyTimeout);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        // All the sign-ins go to the same host, so the pool is one route. Its connections, and the TLS sessions
+        // they carry, are kept between the binds.
+        connectionManager = new PoolingHttpClientConnectionManager(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(Math.max(1, config.verifyConcurrency));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, config.verifyConcurrency));
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
     @Override
     public boolean verifyIAMPassword(Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
         String[] pwParts = extractMFAFromPw(pw);
         try {
             String accountNumber = user.get("accountNumber").getString();
-            HashMap<String,Cookie> cookies = new HashMap<String,Cookie>();
             LOG.debug("Verifying {} {} with accessKey <hidden> and secretKey <hidden>",
                     "user", user.get("uid").getString());
 
-            CookieStore httpCookieStore = new BasicCookieStore();
-            HttpClientBuilder builder = HttpClientBuilder.create().setDefaultCookieStore(httpCookieStore);
-            HttpClient client = builder.build();
+            // The client is shared, the cookies of a sign-in must not be seen by the other sign-ins
+            HttpClientContext context = HttpClientContext.create();
+            context.setCookieStore(new BasicCookieStore());
 
-            HttpPost post = new HttpPost("https://us-east-1.signin.aws.amazon.com/oauth");
+            HttpPost post = new HttpPost(signinEndpoint + "/oauth");
             post.setHeader("User-Agent", USER_AGENT);
-            post.setHeader("Referer", "https://us-east-1.signin.aws.amazon.com/oauth?client_id=arn%3Aaws%3Aiam%3A%3A015428540659%3Auser%2Fhomepage&redirect_uri=https%3A%2F%2Fconsole.aws.amazon.com%2Fconsole%2Fhome%3Fstate%3DhashArgs%2523%26isauthcode%3Dtrue&response_type=code&state=hashArgs%23");
-            post.setHeader("Origin", "https://us-east-1.signin.aws.amazon.com");
+            post.setHeader("Referer", signinEndpoint + "/oauth?client_id=arn%3Aaws%3Aiam%3A%3A015428540659%3Auser%2Fhomepage&redirect_uri=https%3A%2F%2Fconsole.aws.amazon.com%2Fconsole%2Fhome%3Fstate%3DhashArgs%2523%26isauthcode%3Dtrue&response_type=code&state=hashArgs%23");
+            post.setHeader("Origin", signinEndpoint);
             post.setHeader("Accept-Encoding","gzip, deflate, br");
             post.setHeader("Accept-Language", "en-US,en;q=0.9");
             post.setHeader("Content-Type", "application/x-www-form-urlencoded");
@@ -91,18 +120,43 @@ public class IAMAccountPasswordValidator implements _IAMPasswordValidator {
             urlParameters.add(new BasicNameValuePair("next_mfacode", ""));
             post.setEntity(new UrlEncodedFormEntity(urlParameters, Charset.forName("UTF-8")));
 
-            HttpResponse response = client.execute(post);
-
-            return containsHeaders(response, "aws-account-alias", "aws-creds");
+            CloseableHttpResponse response = client.execute(post, context);
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 500 || status == 429) {
+                    // The sign-in has not looked at the password, so do not fail the bind as if it was wrong
+                    LOG.warn("Unable to verify " + user.get("uid").getString() + " against AWS: sign-in returned " + status);
+                    throw new LdapAuthenticationException("AWS could not verify the bind: sign-in returned " + status);
+                }
+                return containsHeaders(response, "aws-account-alias", "aws-creds");
+            } finally {
+                // Releases the connection back to the pool
+                EntityUtils.consumeQuietly(response.getEntity());
+                response.close();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Sign-in connections: " + connectionManager.getTotalStats());
+                }
+            }
         } catch (IOException e) {
-            LOG.error("Exception validating password for " + user.get("uid").getString(), e);
-            return false;
+            // A timeout or a network error, the password may well be right
+            LOG.warn("Unable to verify " + user.get("uid").getString() + " against AWS: " + e.getMessage());
+            throw new LdapAuthenticationException("AWS could not verify the bind: " + e.getMessage());
         } catch (RuntimeException t) {
             LOG.error("Exception validating password for " + user.get("uid").getString(), t);
             throw t;
         }
     }
 
+    @Override
+    public void shutdown() {
+        LOG.debug("Closing the sign-in client with connections: " + connectionManager.getTotalStats());
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOG.warn("Exception closing the sign-in client", e);
+        }
+    }
+
     private String[] extractMFAFromPw(String pw) {
         int sepIdx = pw.lastIndexOf(',');
         if (sepIdx != -1) {
@@ -5,31 +5,161 @@ import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by jweede on 4/5/16.
+ * <p>
+ * Tries the validator which last succeeded for the user first, so users logging in with access keys do not pay
+ * for a failed console sign-in every time. With a hedge delay, the next validator is started if the current one
+ * has not answered within the delay, and the first success wins.
  */
 public class IAMDualValidator implements _IAMPasswordValidator {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(IAMDualValidator.class);
 
+    /**
+     * How long the validator which succeeded is remembered for a user who does not bind again.
+     */
+    private static final long LAST_SUCCEEDED_TTL = TimeUnit.DAYS.toSeconds(1);
+
     private List<_IAMPasswordValidator> validators;
+    private final ExpiringCache<String, _IAMPasswordValidator> lastSucceeded;
+    private final long hedgeDelayMillis;
+    private final ExecutorService hedgeExecutor;
 
     public IAMDualValidator() {
+        this(0, 10000);
+    }
+
+    /**
+     * @param hedgeDelayMillis how long to wait for a validator before starting the next one, or 0 to try them
+     *                         one after the other
+     * @param maxUsers         the maximum number of users whose last successful validator is remembered
+     */
+    public IAMDualValidator(long hedgeDelayMillis, int maxUsers) {
+        this.lastSucceeded = new ExpiringCache<String, _IAMPasswordValidator>(LAST_SUCCEEDED_TTL, maxUsers);
         this.validators = new LinkedList<_IAMPasswordValidator>();
         this.validators.add(new IAMAccountPasswordValidator());
         this.validators.add(new IAMSecretKeyValidator());
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.hedgeExecutor = hedgeDelayMillis > 0 ? Executors.newCachedThreadPool(new NamedThreadFactory("iam-hedge")) : null;
     }
 
     @Override
     public boolean verifyIAMPassword(Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
-        for (_IAMPasswordValidator v : this.validators) {
+        String key = user.getDn().getNormName();
+        List<_IAMPasswordValidator> order = getOrder(key);
+        _IAMPasswordValidator succeeded = hedgeExecutor != null ? verifyHedged(order, user, pw) : verifyInOrder(order, user, pw);
+        if (succeeded == null) return false;
+        lastSucceeded.put(key, succeeded);
+        return true;
+    }
+
+    /**
+     * @return the validators, the one which last succeeded for the user first
+     */
+    private List<_IAMPasswordValidator> getOrder(String key) {
+        _IAMPasswordValidator preferred = lastSucceeded.get(key);
+        if (preferred == null) return validators;
+        List<_IAMPasswordValidator> order = new ArrayList<_IAMPasswordValidator>(validators.size());
+        order.add(preferred);
+        for (_IAMPasswordValidator v : validators) {
+            if (v != preferred) order.add(v);
+        }
+        return order;
+    }
+
+    /**
+     * @return the first validator which succeeds, or null if they all failed. If a validator could not reach AWS and
+     * none has succeeded, its error is thrown instead.
+     */
+    private _IAMPasswordValidator verifyInOrder(List<_IAMPasswordValidator> order, Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
+        LdapAuthenticationException error = null;
+        for (_IAMPasswordValidator v : order) {
             LOG.debug("Dual Validator: trying {} for {}", v.getClass().getName(), user.get("uid").toString());
-            if (v.verifyIAMPassword(user, pw)) {
-                return true;
+            try {
+                if (v.verifyIAMPassword(user, pw)) {
+                    return v;
+                }
+            } catch (LdapAuthenticationException e) {
+                error = e;
             }
         }
-        return false;
+        if (error != null) throw error;
+        return null;
+    }
+
+    /**
+     * Starts the validators one by one, the next one as soon as the previous one has failed or has been running for
+     * the hedge delay, and returns the first one which succeeds. The ones still running are then cancelled.
+     */
+    private _IAMPasswordValidator verifyHedged(List<_IAMPasswordValidator> order, Entry user, String pw) throws LdapAuthenticationException {
+        CompletionService<_IAMPasswordValidator> completion = new ExecutorCompletionService<_IAMPasswordValidator>(hedgeExecutor);
+        List<Future<_IAMPasswordValidator>> running = new ArrayList<Future<_IAMPasswordValidator>>();
+        int started = 0;
+        int finished = 0;
+        LdapAuthenticationException error = null;
+        try {
+            running.add(completion.submit(verifyTask(order.get(started++), user, pw)));
+            while (finished < started) {
+                Future<_IAMPasswordValidator> done = started < order.size()
+                        ? completion.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS)
+                        : completion.take();
+                if (done != null) {
+                    finished++;
+                    try {
+                        _IAMPasswordValidator succeeded = done.get();
+                        if (succeeded != null) return succeeded;
+                    } catch (ExecutionException e) {
+                        LOG.debug("Dual Validator: verification of " + user.getDn() + " failed", e.getCause());
+                        if (e.getCause() instanceof LdapAuthenticationException) {
+                            error = (LdapAuthenticationException) e.getCause();
+                        }
+                    }
+                }
+                if (started < order.size()) {
+                    running.add(completion.submit(verifyTask(order.get(started++), user, pw)));
+                }
+            }
+            if (error != null) throw error;
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LdapAuthenticationException("Interrupted while verifying the bind");
+        } finally {
+            for (Future<_IAMPasswordValidator> future : running) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+        for (_IAMPasswordValidator v : validators) {
+            v.shutdown();
+        }
+    }
+
+    private static Callable<_IAMPasswordValidator> verifyTask(final _IAMPasswordValidator v, final Entry user, final String pw) {
+        return new Callable<_IAMPasswordValidator>() {
+            @Override
+            public _IAMPasswordValidator call() throws Exception {
+                LOG.debug("Dual Validator: trying {} for {}", v.getClass().getName(), user.get("uid").toString());
+                return v.verifyIAMPassword(user, pw) ? v : null;
+            }
+        };
     }
 }
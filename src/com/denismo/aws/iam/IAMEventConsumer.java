@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.util.json.Jackson;
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Consumes the IAM change events which CloudTrail delivers through EventBridge to an SQS queue and applies
+ * them to the directory one user or group at a time, so changes show up within seconds instead of at the next poll.
+ * <p>
+ * An event only tells which user or group has changed - the current state is always read back from IAM. This makes
+ * the processing idempotent and insensitive to the order in which SQS delivers the events. A message is deleted
+ * once it has been applied, or if it is not an IAM event; messages which failed to apply are redelivered by SQS.
+ */
+public class IAMEventConsumer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMEventConsumer.class);
+    private static final Pattern QUEUE_REGION = Pattern.compile("https?://sqs\\.([a-z0-9-]+)\\.amazonaws\\.com.*");
+    private static final int WAIT_SECONDS = 20;
+    private static final int ERROR_BACKOFF_SECONDS = 5;
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final LDAPIAMPoller defaultPoller;
+    private final Map<String, LDAPIAMPoller> accountPollers;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    /**
+     * The IAM change carried by a single event.
+     */
+    public static class Event {
+        private final String accountId;
+        private final String eventName;
+        private final String userName;
+        private final String newUserName;
+        private final String groupName;
+
+        public Event(String accountId, String eventName, String userName, String newUserName, String groupName) {
+            this.accountId = accountId;
+            this.eventName = eventName;
+            this.userName = userName;
+            this.newUserName = newUserName;
+            this.groupName = groupName;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public String getEventName() {
+            return eventName;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getNewUserName() {
+            return newUserName;
+        }
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+        @Override
+        public String toString() {
+            return eventName + "(account=" + accountId + ", user=" + userName + ", newUser=" + newUserName + ", group=" + groupName + ")";
+        }
+    }
+
+    /**
+     * @param defaultPoller  the poller the events of the default account, or of an unknown account, are applied to
+     * @param accountPollers the pollers of the accounts synced through assumed roles, by account id
+     */
+    public IAMEventConsumer(AmazonSQS sqs, String queueUrl, LDAPIAMPoller defaultPoller,
+                            Map<String, LDAPIAMPoller> accountPollers) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        this.defaultPoller = defaultPoller;
+        this.accountPollers = accountPollers;
+    }
+
+    /**
+     * Creates the SQS client for the configured queue. With eventQueueEndpoint set the client talks to that endpoint,
+     * which allows running against a local SQS-compatible server.
+     */
+    public static AmazonSQS createClient(AWSCredentialsProvider credentials, AWSIAMAuthenticator.Config config) {
+        AmazonSQSClientBuilder builder = AmazonSQSClientBuilder.standard().withCredentials(credentials)
+                .withClientConfiguration(AWSClientFactory.createClientConfiguration(config));
+        String region = config.eventQueueRegion;
+        if (region == null || region.isEmpty()) {
+            Matcher matcher = QUEUE_REGION.matcher(config.eventQueueUrl);
+            if (matcher.matches()) {
+                region = matcher.group(1);
+            }
+        }
+        if (config.eventQueueEndpoint != null && !config.eventQueueEndpoint.isEmpty()) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(config.eventQueueEndpoint, region));
+        } else if (region != null && !region.isEmpty()) {
+            builder.withRegion(region);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Consuming IAM events from " + queueUrl);
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withWaitTimeSeconds(WAIT_SECONDS)
+                .withMaxNumberOfMessages(10);
+        while (!stopped) {
+            try {
+                for (Message message : sqs.receiveMessage(request).getMessages()) {
+                    if (stopped) break;
+                    if (handle(message.getBody())) {
+                        sqs.deleteMessage(queueUrl, message.getReceiptHandle());
+                    }
+                }
+            } catch (Exception e) {
+                if (stopped) break;
+                LOG.error("Exception receiving IAM events from " + queueUrl, e);
+                try {
+                    TimeUnit.SECONDS.sleep(ERROR_BACKOFF_SECONDS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        LOG.info("Stopped consuming IAM events");
+    }
+
+    /**
+     * Starts consuming the events on a thread of its own.
+     */
+    public synchronized void start() {
+        thread = new NamedThreadFactory("iam-events").newThread(this);
+        thread.start();
+    }
+
+    /**
+     * Stops consuming the events. The receive in progress is interrupted, so the thread does not linger for the
+     * long polling wait.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        sqs.shutdown();
+    }
+
+    /**
+     * Applies a single message.
+     *
+     * @return true if the message is done with and can be deleted, false if it must be redelivered
+     */
+    boolean handle(String body) {
+        Event event;
+        try {
+            event = parse(body);
+        } catch (Exception e) {
+            LOG.warn("Dropping malformed IAM event message: " + body, e);
+            return true;
+        }
+        if (event == null) return true;
+        try {
+            LOG.debug("Applying IAM event " + event);
+            apply(event);
+            return true;
+        } catch (Exception e) {
+            LOG.error("Unable to apply IAM event " + event + ", leaving it for redelivery", e);
+            return false;
+        }
+    }
+
+    private void apply(Event event) throws Exception {
+        LDAPIAMPoller poller = event.getAccountId() != null ? accountPollers.get(event.getAccountId()) : null;
+        if (poller == null) {
+            poller = defaultPoller;
+        }
+        String name = event.getEventName();
+        if ("UpdateGroup".equals(name)) {
+            // A renamed group changes the DN every member refers to, which is the job of the full sync
+            poller.requestFullSync();
+        } else if ("UpdateUser".equals(name)) {
+            poller.refreshUser(event.getUserName());
+            if (event.getNewUserName() != null) {
+                poller.refreshUser(event.getNewUserName());
+            }
+        } else if (event.getUserName() != null) {
+            poller.refreshUser(event.getUserName());
+        } else if (event.getGroupName() != null) {
+            poller.refreshGroup(event.getGroupName());
+        }
+    }
+
+    /**
+     * Extracts the IAM change from a message body. Accepts EventBridge events ("AWS API Call via CloudTrail"),
+     * the same events wrapped into an SNS notification, and bare CloudTrail records.
+     *
+     * @return the event, or null if the message does not describe a successful IAM change
+     */
+    static Event parse(String body) {
+        JsonNode root = Jackson.jsonNodeOf(body);
+        if ("Notification".equals(text(root, "Type")) && root.has("Message")) {
+            root = Jackson.jsonNodeOf(root.get("Message").asText());
+        }
+        JsonNode detail = root.has("detail") ? root.get("detail") : root;
+        if (!"iam.amazonaws.com".equals(text(detail, "eventSource"))) return null;
+        // Failed calls are recorded by CloudTrail as well, but did not change anything
+        if (detail.hasNonNull("errorCode")) return null;
+        String eventName = text(detail, "eventName");
+        if (eventName == null || !isChange(eventName)) return null;
+
+        JsonNode params = detail.path("requestParameters");
+        String userName = text(params, "userName");
+        if (userName == null && isAccessKeyEvent(eventName)) {
+            // Without userName the key operations apply to the caller
+            userName = text(detail.path("userIdentity"), "userName");
+        }
+        String accountId = text(detail, "recipientAccountId");
+        if (accountId == null) {
+            accountId = text(root, "account");
+        }
+        return new Event(accountId, eventName, userName, text(params, "newUserName"), text(params, "groupName"));
+    }
+
+    private static boolean isChange(String eventName) {
+        return eventName.startsWith("Create") || eventName.startsWith("Delete") || eventName.startsWith("Update")
+                || "AddUserToGroup".equals(eventName) || "RemoveUserFromGroup".equals(eventName);
+    }
+
+    private static boolean isAccessKeyEvent(String eventName) {
+        return eventName.endsWith("AccessKey");
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value != null && !value.isNull() ? value.asText() : null;
+    }
+}
@@ -19,10 +19,21 @@
 package com.denismo.aws.iam;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClientBuilder;
+import com.amazonaws.services.identitymanagement.model.GetAccountSummaryRequest;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import com.amazonaws.services.securitytoken.model.GetCallerIdentityRequest;
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
@@ -33,9 +44,40 @@ import org.slf4j.LoggerFactory;
  * User: Denis Mikhalkin
  * Date: 30/03/13
  * Time: 10:40 PM
+ * <p>
+ * Verifies the credentials by signing a call with them. The client, with its connection pool, is shared by all the
+ * binds: the credentials of the bind are attached to the request only, the client itself has none.
  */
 public class IAMSecretKeyValidator implements _IAMPasswordValidator {
     private static final Logger LOG = LoggerFactory.getLogger(IAMSecretKeyValidator.class);
+
+    private final boolean callerIdentity;
+    private final AmazonIdentityManagement iam;
+    private final AWSSecurityTokenService sts;
+
+    public IAMSecretKeyValidator() {
+        AWSIAMAuthenticator.Config config = AWSIAMAuthenticator.getConfig();
+        if (config == null) config = new AWSIAMAuthenticator.Config();
+        callerIdentity = config.isCallerIdentityVerify();
+        ClientConfiguration clientConfig = AWSClientFactory.createVerifyClientConfiguration(config);
+        AWSStaticCredentialsProvider noCredentials = new AWSStaticCredentialsProvider(new AnonymousAWSCredentials());
+        if (callerIdentity) {
+            iam = null;
+            sts = AWSSecurityTokenServiceClientBuilder.standard()
+                    .withCredentials(noCredentials)
+                    .withClientConfiguration(clientConfig)
+                    .withRegion(Regions.US_EAST_1)
+                    .build();
+        } else {
+            iam = AmazonIdentityManagementClientBuilder.standard()
+                    .withCredentials(noCredentials)
+                    .withClientConfiguration(clientConfig)
+                    .withRegion(Regions.US_EAST_1)
+                    .build();
+            sts = null;
+        }
+    }
+
     @Override
     public boolean verifyIAMPassword(Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException {
         boolean role = false;
@@ -50,18 +92,42 @@ public class IAMSecretKeyValidator implements _IAMPasswordValidator {
         }
         LOG.debug("Verifying {} {} with accessKey <hidden> and secretKey <hidden>",
                 role ? "role":"user", user.get("uid").getString());
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(creds);
+        AWSStaticCredentialsProvider provider = new AWSStaticCredentialsProvider(creds);
         try {
-            client.getAccountSummary();
+            if (callerIdentity) {
+                // Any valid credentials may call GetCallerIdentity, no permission is needed
+                sts.getCallerIdentity(new GetCallerIdentityRequest().<GetCallerIdentityRequest>withRequestCredentialsProvider(provider));
+            } else {
+                iam.getAccountSummary(new GetAccountSummaryRequest().<GetAccountSummaryRequest>withRequestCredentialsProvider(provider));
+            }
         } catch (AmazonClientException e) {
-            System.err.println(e.getMessage());
-            return false;
-        } finally {
-            client.shutdown();
+            if (isRejected(e)) {
+                LOG.debug("Verification of {} failed: {}", user.get("uid").getString(), e.getMessage());
+                return false;
+            }
+            // The credentials may well be valid, so do not fail the bind as if they were not
+            LOG.warn("Unable to verify " + user.get("uid").getString() + " against AWS: " + e.getMessage());
+            throw new LdapAuthenticationException("AWS could not verify the bind: " + e.getMessage());
         }
         return true;
     }
 
+    /**
+     * @return true if AWS has rejected the credentials, false if the call failed for another reason - a network
+     * error, a server error or throttling - which the retries have not overcome
+     */
+    private static boolean isRejected(AmazonClientException e) {
+        if (!(e instanceof AmazonServiceException)) return false;
+        AmazonServiceException se = (AmazonServiceException) e;
+        return se.getErrorType() == AmazonServiceException.ErrorType.Client && !AdaptiveRateLimiter.isThrottling(se);
+    }
+
+    @Override
+    public void shutdown() {
+        if (iam != null) iam.shutdown();
+        if (sts != null) sts.shutdown();
+    }
+
     private boolean isRole(Entry user) {
         return user.hasObjectClass("iamrole");
     }
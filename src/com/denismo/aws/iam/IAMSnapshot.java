@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
+import com.amazonaws.services.identitymanagement.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory picture of the IAM users, groups and group membership of an account, built from
+ * the paginated GetAccountAuthorizationDetails call. The number of API calls needed to build it
+ * grows with the number of pages rather than with the number of users.
+ */
+public class IAMSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(IAMSnapshot.class);
+
+    private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+    private final List<UserRecord> users = new ArrayList<UserRecord>();
+    private int pages;
+
+    public static class UserRecord {
+        private final User user;
+        private final List<Group> groups;
+        private String accessKey;
+        private boolean failed;
+        private boolean deferred;
+
+        public UserRecord(User user, List<Group> groups) {
+            this.user = user;
+            this.groups = groups;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public List<Group> getGroups() {
+            return groups;
+        }
+
+        public String getAccessKey() {
+            return accessKey;
+        }
+
+        public void setAccessKey(String accessKey) {
+            this.accessKey = accessKey;
+        }
+
+        /**
+         * @return true if some details of the user could not be retrieved, so its entry must be left as is
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public void setFailed(boolean failed) {
+            this.failed = failed;
+        }
+
+        /**
+         * @return true if the user is not part of the slice being synced, so its entry must be left as is
+         */
+        public boolean isDeferred() {
+            return deferred;
+        }
+
+        public void setDeferred(boolean deferred) {
+            this.deferred = deferred;
+        }
+    }
+
+    public Collection<Group> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    public List<UserRecord> getUsers() {
+        return Collections.unmodifiableList(users);
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Fetches users and groups of the account and resolves the group membership of every user. The users and groups
+     * outside of the scope are left out. The access keys are resolved separately, by {@link #resolveAccessKeys}.
+     *
+     * @param client  the IAM client
+     * @param limiter the rate limiter all the IAM calls go through
+     * @param scope   the users and groups to include
+     */
+    public static IAMSnapshot fetch(final AmazonIdentityManagement client, final AdaptiveRateLimiter limiter,
+                                    SyncScope scope) throws Exception {
+        IAMSnapshot snapshot = new IAMSnapshot();
+        Set<String> outOfScopeGroups = new HashSet<String>();
+        Map<UserDetail, List<String>> memberships = new LinkedHashMap<UserDetail, List<String>>();
+        final GetAccountAuthorizationDetailsRequest request = new GetAccountAuthorizationDetailsRequest()
+                .withFilter(EntityType.User, EntityType.Group);
+        while (true) {
+            GetAccountAuthorizationDetailsResult res = limiter.execute(new Callable<GetAccountAuthorizationDetailsResult>() {
+                @Override
+                public GetAccountAuthorizationDetailsResult call() {
+                    return client.getAccountAuthorizationDetails(request);
+                }
+            });
+            snapshot.pages++;
+            for (GroupDetail detail : res.getGroupDetailList()) {
+                Group group = new Group(detail.getPath(), detail.getGroupName(), detail.getGroupId(), detail.getArn(),
+                        detail.getCreateDate());
+                if (scope.isGroupInScope(group)) {
+                    snapshot.groups.put(detail.getGroupName(), group);
+                } else {
+                    outOfScopeGroups.add(detail.getGroupName());
+                }
+            }
+            for (UserDetail detail : res.getUserDetailList()) {
+                memberships.put(detail, detail.getGroupList());
+            }
+            if (res.isTruncated() != null && res.isTruncated()) {
+                request.setMarker(res.getMarker());
+            } else {
+                break;
+            }
+        }
+
+        // Groups and users may arrive on different pages so membership is only resolved once all pages are in
+        for (Map.Entry<UserDetail, List<String>> entry : memberships.entrySet()) {
+            UserDetail detail = entry.getKey();
+            User user = new User(detail.getPath(), detail.getUserName(), detail.getUserId(), detail.getArn(),
+                    detail.getCreateDate());
+            if (!scope.isUserInScope(user)) continue;
+            List<Group> userGroups = new ArrayList<Group>();
+            for (String groupName : entry.getValue()) {
+                Group group = snapshot.groups.get(groupName);
+                if (group != null) {
+                    userGroups.add(group);
+                } else if (!outOfScopeGroups.contains(groupName)) {
+                    LOG.warn("User " + detail.getUserName() + " refers to unknown group " + groupName);
+                }
+            }
+            if (scope.hasGroupFilter() && userGroups.isEmpty()) continue;
+            snapshot.users.add(new UserRecord(user, userGroups));
+        }
+        LOG.debug("Fetched IAM snapshot of " + snapshot.users.size() + " users and " + snapshot.groups.size()
+                + " groups in " + snapshot.pages + " pages");
+        return snapshot;
+    }
+
+    /**
+     * Retrieves the active access key of every user of the slice which is a member of at least one group.
+     * The users outside of the slice, and the skipped users, are marked deferred.
+     *
+     * @param records  the users
+     * @param keys     the source of the access keys
+     * @param executor the executor the access keys are fetched on
+     * @param slice    the users to complete
+     * @param skipped  the users to leave alone, as they are refreshed separately
+     */
+    public static void resolveAccessKeys(List<UserRecord> records, final AccessKeyResolver keys, ExecutorService executor,
+                                         UserSlice slice, Set<String> skipped) throws InterruptedException {
+        Map<UserRecord, Future<String>> accessKeys = new LinkedHashMap<UserRecord, Future<String>>();
+        for (UserRecord record : records) {
+            record.setAccessKey(null);
+            record.setFailed(false);
+            final String userName = record.getUser().getUserName();
+            record.setDeferred(!slice.contains(userName) || skipped.contains(userName));
+            if (record.isDeferred() || record.getGroups().isEmpty()) continue;
+            accessKeys.put(record, executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return keys.getActiveAccessKey(userName);
+                }
+            }));
+        }
+        for (Map.Entry<UserRecord, Future<String>> entry : accessKeys.entrySet()) {
+            try {
+                entry.getKey().setAccessKey(entry.getValue().get());
+            } catch (ExecutionException e) {
+                LOG.error("Unable to retrieve access keys of " + entry.getKey().getUser().getUserName(), e.getCause());
+                entry.getKey().setFailed(true);
+            }
+        }
+    }
+
+    static Callable<String> getActiveAccessKeyTask(final AmazonIdentityManagement client,
+                                                   final AdaptiveRateLimiter limiter, final String userName) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                ListAccessKeysResult res = limiter.execute(new Callable<ListAccessKeysResult>() {
+                    @Override
+                    public ListAccessKeysResult call() {
+                        return client.listAccessKeys(new ListAccessKeysRequest().withUserName(userName));
+                    }
+                });
+                for (AccessKeyMetadata meta : res.getAccessKeyMetadata()) {
+                    if ("Active".equals(meta.getStatus())) {
+                        return meta.getAccessKeyId();
+                    }
+                }
+                return null;
+            }
+        };
+    }
+}
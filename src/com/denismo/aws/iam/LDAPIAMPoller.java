@@ -21,11 +21,13 @@ package com.denismo.aws.iam;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
 import com.amazonaws.services.identitymanagement.model.*;
 import com.denismo.apacheds.ApacheDSUtils;
 import com.denismo.apacheds.Runner;
 import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+import com.denismo.apacheds.auth.AccountEntryInterceptor;
+import com.denismo.apacheds.auth.OnDemandUserInterceptor;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
@@ -33,6 +35,7 @@ import org.apache.directory.api.ldap.model.entry.*;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
 import org.apache.directory.api.ldap.model.filter.FilterParser;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -49,6 +52,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.IllegalArgumentException;
+import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
@@ -58,13 +62,24 @@ import java.util.List;
 import java.util.UUID;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,11 +93,14 @@ public class LDAPIAMPoller {
     private static final Object ID_LOCK = new Object();
     public static final String ID_GENERATOR = "ads-dsSyncPeriodMillis";
     public static final String MEMBER_OF = "memberOf";
+    private static final int ON_DEMAND_THREADS = 2;
+    private static final int ON_DEMAND_QUEUE_SIZE = 100;
 
     private static final String CHARSET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
     private static SecureRandom rnd = new SecureRandom();
 
-    private AWSCredentialsProvider credentials;
+    private RefreshingCredentialsProvider credentials;
+    private AmazonIdentityManagement iam;
     private DirectoryService directory;
     private int pollPeriod = 600;
     private String groupsDN;
@@ -94,75 +112,200 @@ public class LDAPIAMPoller {
     private String rolesDN;
     private boolean firstRun = true;
     private Entry configEntry;
-    private ScheduledFuture<?> schedule;
+    private AdaptivePollScheduler pollScheduler;
     private ApacheDSUtils utils;
     private Runner runner;
+    private final FingerprintCache fingerprints = new FingerprintCache();
+    private final Map<String, String> groupGids = new ConcurrentHashMap<String, String>();
+    private SyncStats stats = new SyncStats();
+    private UnixIdMapper idMapper;
+    private final Map<String, ExprNode> classFilters = new ConcurrentHashMap<String, ExprNode>();
+    private SyncStateStore stateStore;
+    private String rootUuid;
+    private boolean stateSaved;
+    private String lastProbe = "";
+    private int cyclesSinceFullSync;
+    private int rollingTick;
+    /**
+     * The users listed at the start of the current round of slices, from which the following slices are synced.
+     */
+    private List<IAMSnapshot.UserRecord> roundUsers;
+    private GroupMembershipIndex roundMembership;
+    private String roundProbe;
+    /**
+     * Whether some users of the current round could not be synced, in which case the probe is not committed.
+     */
+    private boolean roundFailed;
+    /**
+     * Whether the users of the current round are compared with their entries even if their fingerprint matches,
+     * so the entries modified or deleted outside of the poller are repaired.
+     */
+    private boolean checkEntries;
+    private boolean entriesChecked;
+    private int roundsSinceCheck;
+    private ActivityTracker activity;
+    /**
+     * The users left to the hot refresh during the current sync.
+     */
+    private Set<String> hotUsers = Collections.emptySet();
+    private final SingleFlight<String, Boolean> onDemandRefreshes = new SingleFlight<String, Boolean>();
+    private ExpiringCache<String, Boolean> recentRefreshes;
+    private ExecutorService onDemandExecutor;
+    private long nextOnDemandNanos = System.nanoTime();
+    private AccountEntryCache accountEntries;
+    private AccountEntryInterceptor accountEntryInterceptor;
+    private AdaptiveRateLimiter rateLimiter;
+    private AccessKeyResolver accessKeys;
+    private ExecutorService fetchExecutor;
+    private ExecutorService pageExecutor;
+    private ScheduledExecutorService scheduler;
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private volatile boolean fullSyncRequested;
+    private final String accountId;
+    private final SyncScope scope;
 
     public LDAPIAMPoller(DirectoryService directoryService) throws LdapException {
+        this(directoryService, null);
+    }
+
+    /**
+     * @param roleArn the role to assume to sync another account into the ou=&lt;account id&gt; subtree of the root DN,
+     *                or null to sync the account of the default credentials into the root DN
+     */
+    public LDAPIAMPoller(DirectoryService directoryService, String roleArn) throws LdapException {
         this.directory = directoryService;
 
-        credentials = new DefaultAWSCredentialsProviderChain();
+        AWSIAMAuthenticator.Config config = AWSIAMAuthenticator.getConfig();
+        accountId = roleArn != null ? getRoleAccountNumber(roleArn) : null;
+        rootDN = accountId != null ? "ou=" + accountId + "," + config.rootDN : config.rootDN;
+        groupsDN = "ou=groups," + rootDN;
+        usersDN = "ou=users," + rootDN;
+        rolesDN = "ou=roles," + rootDN;
+        GROUP_FMT = "cn=%s," + groupsDN;
+        USER_FMT = "uid=%s," + usersDN;
+        ROLE_FMT = "uid=%s,ou=roles," + rootDN;
         try {
-            credentials.getCredentials(); // throws
+            credentials = new RefreshingCredentialsProvider(roleArn != null
+                    ? AWSClientFactory.createAssumeRoleCredentials(roleArn, config)
+                    : new DefaultAWSCredentialsProviderChain(), config.credentialsRefresh); // throws
         } catch (AmazonClientException ex) {
             LOG.error("AWS credentials error", ex);
             throw new LdapException("Unable to initialze AWS poller - cannot retrieve valid credentials");
         }
+        iam = AWSClientFactory.createIAMClient(credentials, config);
         utils = new ApacheDSUtils(directory);
         runner = new Runner(directory);
-        LOG.info("IAMPoller created");
+        rateLimiter = new AdaptiveRateLimiter(config.iamMinRate, config.iamMaxRate);
+        accessKeys = new AccessKeyResolver(iam, rateLimiter, config.getCredentialReportMaxAge());
+        activity = new ActivityTracker(config.hotWindow);
+        recentRefreshes = new ExpiringCache<String, Boolean>(config.onDemandCacheTtl, 10000);
+        accountEntries = new AccountEntryCache(directory.getSchemaManager(), 10000);
+        scope = SyncScope.fromConfig(config);
+        LOG.info("IAMPoller created for " + getName() + " at " + rootDN);
+    }
+
+    /**
+     * @return the account synced by the poller, or null for the account of the default credentials
+     */
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public String getName() {
+        return accountId != null ? accountId : "default";
+    }
+
+    /**
+     * @return the cache of the account entries of the subtree, usable once it is active
+     */
+    public AccountEntryCache getAccountEntries() {
+        return accountEntries;
+    }
+
+    public AWSCredentialsProvider getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return true if the DN belongs to the subtree synced by the poller
+     */
+    public boolean contains(Dn dn) throws LdapException {
+        return dn != null && dn.isDescendantOf(directory.getDnFactory().create(rootDN));
+    }
+
+    /**
+     * @return true if the subtree synced by the poller is within the DN, as for a search based above the root DN
+     */
+    public boolean isWithin(Dn dn) throws LdapException {
+        return dn != null && directory.getDnFactory().create(rootDN).isDescendantOf(dn);
     }
 
     private void createStructure() throws Exception {
         if (!firstRun) return;
         firstRun = false;
         try {
-            runner.createStructure();
+            // The partition is shared by the pollers of all the accounts
+            synchronized (ID_LOCK) {
+                runner.createStructure();
+            }
             readConfig();
+            loadSyncState();
+            if (AWSIAMAuthenticator.getConfig().onDemandRefresh) {
+                OnDemandUserInterceptor.register(directory, this);
+            }
+            accountEntryInterceptor = new AccountEntryInterceptor(accountEntries, getName());
+            directory.addLast(accountEntryInterceptor);
+            accountEntries.setActive(true);
         } catch (Exception e) {
             LOG.error("Exception preparing structure", e);
-            schedule.cancel(false);
+            pollScheduler.stop();
             throw new RuntimeException("Unable to initialize poller");
         }
     }
 
     private void readConfig() {
         try {
-            Dn configDn = directory.getDnFactory().create("cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,ads-interceptorId=authenticationInterceptor,ou=interceptors,ads-directoryServiceId=default,ou=config");
-            if (!utils.exists(configDn)) {
-                configEntry = directory.newEntry(configDn);
-                configEntry.put("objectClass", "iamauthenticatorconfig", "top");
-                configEntry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
-                configEntry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
-                configEntry.put("cn", "config");
-                configEntry.put(ID_GENERATOR, "1000");
-                directory.getAdminSession().add(configEntry);
-            } else {
-                LookupOperationContext lookupContext = new LookupOperationContext(directory.getAdminSession(),
-                        configDn,
-                        SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
-                configEntry = directory.getPartitionNexus().lookup(lookupContext);
+            synchronized (ID_LOCK) {
+                readConfigEntry();
             }
 
             AWSIAMAuthenticator.Config config = AWSIAMAuthenticator.getConfig();
-            rootDN = config.rootDN;
             pollPeriod = config.pollPeriod;
-
-            groupsDN = "ou=groups," + rootDN;
-            usersDN = "ou=users," + rootDN;
-            rolesDN = "ou=roles," + rootDN;
-            GROUP_FMT = "cn=%s," + groupsDN;
-            USER_FMT = "uid=%s," + usersDN;
-            ROLE_FMT = "uid=%s,ou=roles," + rootDN;
+            if (config.isHashIdMapping()) {
+                idMapper = new UnixIdMapper(config.idRangeStart, config.idRangeSize);
+            }
             ensureDNs();
         } catch (Throwable e) {
             LOG.error("Exception reading config for LDAPIAMPoller", e);
         }
     }
 
+    /**
+     * Reads the config entry shared by all the pollers, creating it if needed. Must hold ID_LOCK.
+     */
+    private void readConfigEntry() throws Exception {
+        Dn configDn = directory.getDnFactory().create("cn=config,ads-authenticatorid=awsiamauthenticator,ou=authenticators,ads-interceptorId=authenticationInterceptor,ou=interceptors,ads-directoryServiceId=default,ou=config");
+        if (!utils.exists(configDn)) {
+            configEntry = directory.newEntry(configDn);
+            configEntry.put("objectClass", "iamauthenticatorconfig", "top");
+            configEntry.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
+            configEntry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+            configEntry.put("cn", "config");
+            configEntry.put(ID_GENERATOR, "1000");
+            directory.getAdminSession().add(configEntry);
+        } else {
+            LookupOperationContext lookupContext = new LookupOperationContext(directory.getAdminSession(),
+                    configDn,
+                    SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+            configEntry = directory.getPartitionNexus().lookup(lookupContext);
+        }
+    }
     private void ensureDNs() throws LdapException, IOException, ParseException, CursorException {
-        directory.getPartitionNexus().hasEntry(new HasEntryOperationContext(directory.getAdminSession(),
-                directory.getDnFactory().create(rootDN)));
+        if (!directory.getPartitionNexus().hasEntry(new HasEntryOperationContext(directory.getAdminSession(),
+                directory.getDnFactory().create(rootDN)))) {
+            // The subtree of an account synced through an assumed role
+            createEntry(rootDN, "organizationalUnit");
+        }
         if (!directory.getPartitionNexus().hasEntry(new HasEntryOperationContext(directory.getAdminSession(),
                 directory.getDnFactory().create(usersDN)))) {
             createEntry(usersDN, "organizationalUnit");
@@ -213,19 +356,145 @@ public class LDAPIAMPoller {
         add(entry);
     }
 
-    private void pollIAM() {
-        if (!directory.isStarted()) return;
+    /**
+     * @return the statistics of the cycle, or null if it could not run
+     */
+    private SyncStats pollIAM() {
+        if (!directory.isStarted()) return null;
+        syncLock.lock();
+        try {
+            return doPollIAM();
+        } finally {
+            syncLock.unlock();
+        }
+    }
 
+    private SyncStats doPollIAM() {
         LOG.debug("*** Updating accounts from IAM");
+        stats = new SyncStats();
         try {
             createStructure();
-            populateGroupsFromIAM();
-            populateUsersFromIAM();
+            boolean forced = fullSyncRequested;
+            fullSyncRequested = false;
+            int slices = Math.max(1, AWSIAMAuthenticator.getConfig().rollingSlices);
+            if (forced || rollingTick >= slices || roundUsers == null) {
+                // A requested sync lists everything again, as does a round whose start has failed
+                rollingTick = 0;
+            }
+            boolean roundStart = rollingTick == 0;
+            boolean roundEnd = rollingTick == slices - 1;
+            UserSlice slice = slices == 1 ? UserSlice.ALL : new UserSlice(rollingTick, slices);
+            if (roundStart) {
+                String probe = probeIAM();
+                int fullSyncEvery = AWSIAMAuthenticator.getConfig().fullSyncEvery;
+                if (!forced && entriesChecked && probe != null && probe.equals(lastProbe)
+                        && cyclesSinceFullSync + 1 < fullSyncEvery) {
+                    cyclesSinceFullSync++;
+                    LOG.info("*** IAM has not changed since the last sync, skipping the update");
+                    return stats;
+                }
+                // The fingerprints only tell what the poller wrote, not what the directory holds now
+                checkEntries = forced || !entriesChecked || roundsSinceCheck + 1 >= fullSyncEvery;
+                roundProbe = probe;
+                roundFailed = false;
+                roundMembership = new GroupMembershipIndex();
+                roundUsers = null;
+            }
+            accessKeys.refreshReport();
+            hotUsers = getHotUsers();
+            if (!roundStart) {
+                continueRound(slice);
+            } else if (AWSIAMAuthenticator.getConfig().isSnapshotSync()) {
+                populateFromSnapshot(slice, slices > 1);
+            } else {
+                List<Group> groups = populateGroupsFromIAM();
+                populateUsersFromIAM(slice, groups, slices > 1);
+            }
 
 //            populateRolesFromIAM();
-            LOG.debug("*** IAM account update finished");
+            roundFailed |= stats.getFailed() > 0;
+            boolean probeChanged = false;
+            boolean checked = false;
+            if (roundEnd) {
+                // The membership and the probe only hold once every slice of the round has been synced
+                reconcileGroupMembers(roundMembership);
+                if (checkEntries) {
+                    checked = true;
+                    entriesChecked = true;
+                    roundsSinceCheck = 0;
+                } else {
+                    roundsSinceCheck++;
+                }
+                checkEntries = false;
+                if (roundFailed) {
+                    // The probe has seen changes which have not all been applied, so the next round must not skip
+                    LOG.info("*** Some users could not be synced, the next round will run regardless of the probe");
+                } else {
+                    cyclesSinceFullSync = 0;
+                    probeChanged = roundProbe != null && !roundProbe.equals(lastProbe);
+                    if (roundProbe != null) {
+                        lastProbe = roundProbe;
+                    }
+                }
+                roundUsers = null;
+                roundMembership = null;
+            }
+            rollingTick = (rollingTick + 1) % slices;
+            LOG.info("*** IAM account update finished" + (slice.isAll() ? "" : " for slice " + slice) + ": " + stats);
+            if (stats.getChanges() > 0 || probeChanged || checked || !stateSaved) {
+                saveSyncState();
+            }
+            return stats;
         } catch (Throwable e) {
             LOG.error("Exception polling", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the result of the change probe, or null if the probe is disabled or failed
+     */
+    private String probeIAM() {
+        if (!AWSIAMAuthenticator.getConfig().changeProbe) return null;
+        try {
+            return new ChangeProbe(iam, rateLimiter).probe();
+        } catch (Exception e) {
+            LOG.warn("Change probe failed, running a full sync", e);
+            return null;
+        }
+    }
+
+    private void loadSyncState() {
+        if (!AWSIAMAuthenticator.getConfig().persistSyncState) return;
+        try {
+            LookupOperationContext lookupContext = new LookupOperationContext(directory.getAdminSession(),
+                    directory.getDnFactory().create(rootDN), SchemaConstants.ENTRY_UUID_AT);
+            rootUuid = directory.getPartitionNexus().lookup(lookupContext).get(SchemaConstants.ENTRY_UUID_AT).getString();
+            stateStore = new SyncStateStore(new File(directory.getInstanceLayout().getPartitionsDirectory(),
+                    accountId != null ? "iam-sync-state-" + accountId + ".bin" : "iam-sync-state.bin"));
+            SyncStateStore.State state = stateStore.load(rootUuid);
+            if (state != null) {
+                groupGids.putAll(state.getGroupGids());
+                fingerprints.putAll(state.getFingerprints());
+                lastProbe = state.getProbe();
+                // The entries were compared with IAM before the restart, the partition is the same one
+                entriesChecked = state.isEntriesChecked();
+                roundsSinceCheck = state.getRoundsSinceCheck();
+            }
+        } catch (LdapException e) {
+            LOG.error("Unable to load sync state", e);
+            stateStore = null;
+        }
+    }
+
+    private void saveSyncState() {
+        if (stateStore == null) return;
+        try {
+            stateStore.save(rootUuid, new SyncStateStore.State(new HashMap<String, String>(groupGids),
+                    new HashMap<String, String>(fingerprints.getAll()), lastProbe, entriesChecked, roundsSinceCheck));
+            stateSaved = true;
+        } catch (IOException e) {
+            LOG.error("Unable to save sync state to " + stateStore.getFile(), e);
         }
     }
 
@@ -239,28 +508,22 @@ public class LDAPIAMPoller {
     }
 
     private void populateRolesFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
-
-        try {
-            ListRolesResult res = client.listRoles();
-            while (true) {
-                for (Role role : res.getRoles()) {
-                    try {
-                        Entry groupEntry = getOrCreateRoleGroup(role);
-                        addRole(role, groupEntry);
-                        LOG.debug("Added role " + role.getRoleName() + " at " + rolesDN);
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing role " + role.getRoleName(), e);
-                    }
-                }
-                if (res.isTruncated()) {
-                    res = client.listRoles(new ListRolesRequest().withMarker(res.getMarker()));
-                } else {
-                    break;
+        ListRolesResult res = iam.listRoles();
+        while (true) {
+            for (Role role : res.getRoles()) {
+                try {
+                    Entry groupEntry = getOrCreateRoleGroup(role);
+                    addRole(role, groupEntry);
+                    LOG.debug("Added role " + role.getRoleName() + " at " + rolesDN);
+                } catch (Throwable e) {
+                    LOG.error("Exception processing role " + role.getRoleName(), e);
                 }
             }
-        } finally {
-            client.shutdown();
+            if (res.isTruncated()) {
+                res = iam.listRoles(new ListRolesRequest().withMarker(res.getMarker()));
+            } else {
+                break;
+            }
         }
     }
 
@@ -290,7 +553,6 @@ public class LDAPIAMPoller {
         ent.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
         ent.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
         ent.put("cn", role.getRoleName());
-        ent.put("uidNumber", allocateUserID(role.getArn()));
         ent.put("gidNumber", roleGroup.get("gidNumber").getString());
         ent.put("shadowLastChange", "10877");
         ent.put("shadowExpire", "-1");
@@ -302,7 +564,7 @@ public class LDAPIAMPoller {
         ent.put("loginshell", "/bin/bash");
         ent.put("homedirectory", "/home/" + role.getRoleName());
         ent.put("userPassword", createRandomPassword());
-        add(ent);
+        addWithID(ent, "posixAccount", "uidNumber", role.getRoleId());
 
         directory.getAdminSession().modify(roleGroup.getDn(),
                 new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", role.getRoleName()));
@@ -323,91 +585,136 @@ public class LDAPIAMPoller {
         return null;
     }
 
-    private void populateGroupsFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
-
-        try {
-            ListGroupsResult res = client.listGroups();
-            Set<String> groupNames = new HashSet<String>();
-            while (true) {
-                for (Group group : res.getGroups()) {
-                    try {
-                        addGroup(group);
-                        groupNames.add(group.getGroupName());
-                        LOG.debug("Added group " + group.getGroupName() + " at " + groupsDN);
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing group " + group.getGroupName(), e);
-                    }
+    /**
+     * @return the groups in scope
+     */
+    private List<Group> populateGroupsFromIAM() throws Exception {
+        final ListGroupsRequest request = new ListGroupsRequest().withPathPrefix(scope.getGroupPathPrefix());
+        Set<String> groupNames = new HashSet<String>();
+        List<Group> groups = new ArrayList<Group>();
+        while (true) {
+            ListGroupsResult res = rateLimiter.execute(new Callable<ListGroupsResult>() {
+                @Override
+                public ListGroupsResult call() {
+                    return iam.listGroups(request);
                 }
-                if (res.isTruncated()) {
-                    res = client.listGroups(new ListGroupsRequest().withMarker(res.getMarker()));
-                } else {
-                    break;
+            });
+            for (Group group : scope.filterGroups(res.getGroups())) {
+                try {
+                    addGroup(group);
+                    groupNames.add(group.getGroupName());
+                    groups.add(group);
+                    LOG.debug("Added group " + group.getGroupName() + " at " + groupsDN);
+                } catch (Throwable e) {
+                    LOG.error("Exception processing group " + group.getGroupName(), e);
                 }
             }
-            removeDeletedGroups(groupNames);
-        } finally {
-            client.shutdown();
+            if (res.isTruncated()) {
+                request.setMarker(res.getMarker());
+            } else {
+                break;
+            }
         }
+        removeDeletedGroups(groupNames);
+        return groups;
     }
 
-    private void removeDeletedGroups(Set<String> groupNames) {
-        Collection<Entry> allGroups = getAllEntries(groupsDN, "iamgroup");
-        for (Entry group : allGroups) {
-            try {
+    private void removeDeletedGroups(final Set<String> groupNames) {
+        final List<Entry> deleted = new ArrayList<Entry>();
+        forEachEntry(groupsDN, "iamgroup", new EntryVisitor() {
+            @Override
+            public void visit(Entry group) throws LdapException {
                 if (!groupNames.contains(group.get(SchemaConstants.CN_AT).getString())) {
-                    LOG.debug("Deleting non-existant group " + group.get(SchemaConstants.CN_AT).getString());
-                    directory.getAdminSession().delete(group.getDn());
+                    deleted.add(group);
                 }
+            }
+        }, SchemaConstants.CN_AT);
+        for (Entry group : deleted) {
+            try {
+                LOG.debug("Deleting non-existant group " + group.get(SchemaConstants.CN_AT).getString());
+                directory.getAdminSession().delete(group.getDn());
+                groupGids.remove(group.get(SchemaConstants.CN_AT).getString());
+                stats.deleted();
             } catch (LdapException e) {
                 LOG.error("Unable to delete group " + group.getDn());
             }
         }
     }
 
-    private Collection<Entry> getAllEntries(String rootDN, String className) {
+    /**
+     * Receives the entries found by {@link #forEachEntry} while the search cursor is open. Entries
+     * must not be modified by the visitor, as that would invalidate the cursor.
+     */
+    private interface EntryVisitor {
+        void visit(Entry entry) throws LdapException;
+    }
+
+    /**
+     * Streams the entries of the given object class under the root DN to the visitor, without materializing
+     * the search results. Errors are logged and end the iteration.
+     *
+     * @param attributes the attributes to return, as few as the visitor needs
+     */
+    private void forEachEntry(String rootDN, String className, EntryVisitor visitor, String... attributes) {
+        try {
+            ExprNode filter = classFilters.get(className);
+            if (filter == null) {
+                filter = parseFilter(String.format("(ObjectClass=%s)", className));
+                classFilters.put(className, filter);
+            }
+            forEachEntry(rootDN, filter, visitor, attributes);
+        } catch (Exception e) {
+            LOG.error("Unable to search for " + className + " under " + rootDN, e);
+        }
+    }
+
+    private void forEachEntry(String rootDN, ExprNode filter, EntryVisitor visitor, String... attributes) throws Exception {
+        Dn dn = directory.getDnFactory().create(rootDN);
+        dn.apply(directory.getSchemaManager());
+        // The search annotates the filter nodes, so the cached filter is never handed out directly
+        SearchOperationContext context = new SearchOperationContext(directory.getAdminSession(),
+                dn, SearchScope.SUBTREE, filter.clone(), attributes);
+        EntryFilteringCursor cursor = directory.getPartitionNexus().search(context);
         try {
-            Dn dn = directory.getDnFactory().create(rootDN);
-            dn.apply(directory.getSchemaManager());
-            ExprNode filter = FilterParser.parse(directory.getSchemaManager(), String.format("(ObjectClass=%s)", className));
-            NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer(directory.getSchemaManager());
-            FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(ncn, directory.getSchemaManager());
-            filter.accept(visitor);
-            SearchOperationContext context = new SearchOperationContext(directory.getAdminSession(),
-                    dn, SearchScope.SUBTREE, filter, SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
-            EntryFilteringCursor cursor = directory.getPartitionNexus().search(context);
             cursor.beforeFirst();
-            Collection<Entry> entries = new ArrayList<Entry>();
             while (cursor.next()) {
                 Entry ent = cursor.get();
                 if (ent.getDn().equals(dn)) continue;
-                entries.add(ent);
+                visitor.visit(ent);
             }
+        } finally {
             cursor.close();
-            return entries;
-        } catch (Throwable e) {
-            return Collections.emptyList();
         }
     }
 
+    private ExprNode parseFilter(String filterString) throws ParseException, LdapException {
+        ExprNode filter = FilterParser.parse(directory.getSchemaManager(), filterString);
+        NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer(directory.getSchemaManager());
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(ncn, directory.getSchemaManager());
+        filter.accept(visitor);
+        return filter;
+    }
+
     private Entry addGroup(Group iamGroup) throws Exception {
         LOG.debug("Adding group " + iamGroup.getGroupName());
         Entry existingGroup = getExistingGroup(iamGroup);
         if (existingGroup != null) {
             LOG.debug("Group exists: " + iamGroup.getGroupName());
+            groupGids.put(iamGroup.getGroupName(), existingGroup.get("gidNumber").getString());
+            stats.skipped();
             return existingGroup;
         }
 
-        String gid = allocateGroupID(iamGroup.getArn());
         Dn groupDn = directory.getDnFactory().create(String.format(GROUP_FMT, iamGroup.getGroupName()));
         LOG.debug("New group dn: " + groupDn);
         Entry group = new DefaultEntry(directory.getSchemaManager(), groupDn);
         group.put(SchemaConstants.OBJECT_CLASS_AT, "posixGroup", "iamgroup", "top");
-        group.put("gidNumber", gid);
         group.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
         group.put(SchemaConstants.CN_AT, iamGroup.getGroupName());
         group.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
-        add(group);
+        String gid = addWithID(group, "posixGroup", "gidNumber", iamGroup.getGroupId());
+        groupGids.put(iamGroup.getGroupName(), gid);
+        stats.added();
         return group;
     }
 
@@ -433,8 +740,54 @@ public class LDAPIAMPoller {
         directory.getAdminSession().add(entry);
     }
 
-    private String allocateGroupID(String groupName) {
-        return allocateID();
+    /**
+     * Assigns the next uidNumber or gidNumber to the entry and adds it. With the hash mapping, the search for a free
+     * number and the add happen under ID_LOCK, so the pollers of two accounts cannot both take the same number.
+     *
+     * @return the number assigned
+     */
+    private String addWithID(Entry entry, String className, String attributeName, String uniqueId) throws LdapException {
+        if (idMapper == null) {
+            String id = allocateID();
+            entry.put(attributeName, id);
+            add(entry);
+            return id;
+        }
+        synchronized (ID_LOCK) {
+            String id = mapID(className, attributeName, uniqueId);
+            entry.put(attributeName, id);
+            add(entry);
+            return id;
+        }
+    }
+
+    /**
+     * Derives the ID from the IAM unique ID, skipping the numbers already taken by other entries of any account.
+     * Must hold ID_LOCK until the entry taking the ID has been added.
+     */
+    private String mapID(String className, String attributeName, String uniqueId) {
+        try {
+            for (int attempt = 0; attempt < idMapper.getRangeSize(); attempt++) {
+                String candidate = String.valueOf(idMapper.getId(uniqueId, attempt));
+                final boolean[] taken = new boolean[1];
+                forEachEntry(AWSIAMAuthenticator.getConfig().rootDN, parseFilter(String.format("(&(objectClass=%s)(%s=%s)",
+                        className, attributeName, candidate)), new EntryVisitor() {
+                    @Override
+                    public void visit(Entry entry) {
+                        taken[0] = true;
+                    }
+                }, SchemaConstants.NO_ATTRIBUTE);
+                if (!taken[0]) {
+                    if (attempt > 0) {
+                        LOG.info("Resolved " + attributeName + " collision for " + uniqueId + " after " + attempt + " attempts");
+                    }
+                    return candidate;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        throw new RuntimeException("No free " + attributeName + " left in the configured range");
     }
 
     private String allocateID() {
@@ -442,131 +795,683 @@ public class LDAPIAMPoller {
             int lastID;
             String newID;
             try {
+                // The counter is shared with the pollers of the other accounts
+                readConfigEntry();
                 lastID = Integer.parseInt(configEntry.get(ID_GENERATOR).getString());
                 newID = String.valueOf(lastID + 1);
                 directory.getAdminSession().modify(configEntry.getDn(),
                         new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, ID_GENERATOR, newID)
                 );
                 configEntry.put(ID_GENERATOR, newID);
-            } catch (LdapException e) {
+            } catch (Exception e) {
                 throw new RuntimeException(e);
             }
             return newID;
         }
     }
 
-    private void populateUsersFromIAM() {
-        AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(credentials);
+    /**
+     * Starts a round: syncs the groups and the users of the first slice, and removes the deleted users and groups.
+     *
+     * @param rolling true to keep the listed users for the following slices of the round
+     */
+    private void populateFromSnapshot(UserSlice slice, boolean rolling) throws Exception {
+        IAMSnapshot snapshot = IAMSnapshot.fetch(iam, rateLimiter, scope);
 
-        try {
-            ListUsersResult res = client.listUsers();
-            Set<String> allUsers = new HashSet<String>();
+        Set<String> groupNames = new HashSet<String>();
+        for (Group group : snapshot.getGroups()) {
+            try {
+                addGroup(group);
+                groupNames.add(group.getGroupName());
+                LOG.debug("Added group " + group.getGroupName() + " at " + groupsDN);
+            } catch (Throwable e) {
+                LOG.error("Exception processing group " + group.getGroupName(), e);
+            }
+        }
+        removeDeletedGroups(groupNames);
+
+        IAMSnapshot.resolveAccessKeys(snapshot.getUsers(), accessKeys, fetchExecutor, slice, hotUsers);
+        Set<String> allUsers = new HashSet<String>();
+        for (IAMSnapshot.UserRecord record : snapshot.getUsers()) {
+            applyUserRecord(record, allUsers, roundMembership);
+        }
+        removeDeletedUsers(allUsers, roundMembership);
+        if (rolling) {
+            roundUsers = snapshot.getUsers();
+        }
+    }
+
+    /**
+     * Starts a round: lists all the users, so deleted users are always removed, but only fetches the details of
+     * and updates the users of the first slice.
+     *
+     * @param rolling true to keep the listed users for the following slices of the round
+     */
+    private void populateUsersFromIAM(final UserSlice slice, final List<Group> groups, boolean rolling) throws Exception {
+        final Set<String> allUsers = new HashSet<String>();
+        final List<IAMSnapshot.UserRecord> listed = rolling ? new ArrayList<IAMSnapshot.UserRecord>() : null;
+        UserSyncPipeline pipeline = new UserSyncPipeline(pageExecutor, fetchExecutor,
+                AWSIAMAuthenticator.getConfig().pipelineQueueSize);
+        pipeline.run(new UserSyncPipeline.Fetcher() {
+            @Override
+            public void fetch(final UserSyncPipeline.Emitter emitter) throws Exception {
+                UserSyncPipeline.Emitter listing = listed == null ? emitter : new UserSyncPipeline.Emitter() {
+                    @Override
+                    public void emit(IAMSnapshot.UserRecord record) throws InterruptedException {
+                        listed.add(new IAMSnapshot.UserRecord(record.getUser(), record.getGroups()));
+                        emitter.emit(record);
+                    }
+                };
+                if (scope.hasGroupFilter()) {
+                    fetchGroupMembers(groups, slice, listing);
+                    return;
+                }
+                final ListUsersRequest request = new ListUsersRequest().withPathPrefix(scope.getUserPathPrefix());
+                while (true) {
+                    ListUsersResult res = rateLimiter.execute(new Callable<ListUsersResult>() {
+                        @Override
+                        public ListUsersResult call() {
+                            return iam.listUsers(request);
+                        }
+                    });
+                    for (User user : res.getUsers()) {
+                        IAMSnapshot.UserRecord record = new IAMSnapshot.UserRecord(user, Collections.<Group>emptyList());
+                        record.setDeferred(!slice.contains(user.getUserName()));
+                        listing.emit(record);
+                    }
+                    if (res.isTruncated()) {
+                        request.setMarker(res.getMarker());
+                    } else {
+                        break;
+                    }
+                }
+            }
+        }, new UserSyncPipeline.Transformer() {
+            @Override
+            public IAMSnapshot.UserRecord transform(IAMSnapshot.UserRecord record) throws Exception {
+                return completeUserRecord(record);
+            }
+        }, new UserSyncPipeline.Applier() {
+            @Override
+            public void apply(IAMSnapshot.UserRecord record) {
+                applyUserRecord(record, allUsers, roundMembership);
+            }
+        });
+        removeDeletedUsers(allUsers, roundMembership);
+        roundUsers = listed;
+    }
+
+    /**
+     * Syncs the users of a slice after the first one of the round, from the users listed at the start of the round.
+     * A user deleted from IAM in the meantime is removed when its slice comes up, or at the start of the next round.
+     */
+    private void continueRound(UserSlice slice) throws Exception {
+        final List<IAMSnapshot.UserRecord> records = new ArrayList<IAMSnapshot.UserRecord>();
+        for (IAMSnapshot.UserRecord listed : roundUsers) {
+            if (slice.contains(listed.getUser().getUserName())) {
+                records.add(new IAMSnapshot.UserRecord(listed.getUser(), listed.getGroups()));
+            }
+        }
+        final Set<String> kept = new HashSet<String>();
+        if (AWSIAMAuthenticator.getConfig().isSnapshotSync()) {
+            IAMSnapshot.resolveAccessKeys(records, accessKeys, fetchExecutor, slice, hotUsers);
+            for (IAMSnapshot.UserRecord record : records) {
+                applyUserRecord(record, kept, roundMembership);
+            }
+        } else {
+            UserSyncPipeline pipeline = new UserSyncPipeline(pageExecutor, fetchExecutor,
+                    AWSIAMAuthenticator.getConfig().pipelineQueueSize);
+            pipeline.run(new UserSyncPipeline.Fetcher() {
+                @Override
+                public void fetch(UserSyncPipeline.Emitter emitter) throws Exception {
+                    for (IAMSnapshot.UserRecord record : records) {
+                        emitter.emit(record);
+                    }
+                }
+            }, new UserSyncPipeline.Transformer() {
+                @Override
+                public IAMSnapshot.UserRecord transform(IAMSnapshot.UserRecord record) throws Exception {
+                    return completeUserRecord(record);
+                }
+            }, new UserSyncPipeline.Applier() {
+                @Override
+                public void apply(IAMSnapshot.UserRecord record) {
+                    applyUserRecord(record, kept, roundMembership);
+                }
+            });
+        }
+        for (IAMSnapshot.UserRecord record : records) {
+            String userName = record.getUser().getUserName();
+            if (kept.contains(userName)) continue;
+            try {
+                deleteUserEntry(userName);
+                roundMembership.setMembership(userName, Collections.<String>emptyList());
+            } catch (Exception e) {
+                LOG.error("Unable to delete user " + userName, e);
+            }
+        }
+    }
+
+    /**
+     * Retrieves what the listing has not provided: the groups, unless known from the group members, and the access key.
+     */
+    private IAMSnapshot.UserRecord completeUserRecord(IAMSnapshot.UserRecord record) throws Exception {
+        if (hotUsers.contains(record.getUser().getUserName())) {
+            record.setDeferred(true);
+        }
+        if (record.isDeferred()) return record;
+        if (scope.hasGroupFilter()) {
+            // The groups are already known from the group members
+            record.setAccessKey(accessKeys.getActiveAccessKey(record.getUser().getUserName()));
+            return record;
+        }
+        return fetchUserRecord(record.getUser(), false);
+    }
+
+    /**
+     * Emits the members of the groups in scope, with their groups. Users are only emitted once all the groups
+     * have been read, as a user may belong to several of them.
+     */
+    private void fetchGroupMembers(List<Group> groups, UserSlice slice, UserSyncPipeline.Emitter emitter) throws Exception {
+        Map<String, IAMSnapshot.UserRecord> records = new LinkedHashMap<String, IAMSnapshot.UserRecord>();
+        for (Group group : groups) {
+            final GetGroupRequest request = new GetGroupRequest().withGroupName(group.getGroupName());
             while (true) {
+                GetGroupResult res = rateLimiter.execute(new Callable<GetGroupResult>() {
+                    @Override
+                    public GetGroupResult call() {
+                        return iam.getGroup(request);
+                    }
+                });
                 for (User user : res.getUsers()) {
-                    try {
-                        Collection<Group> groups = client.listGroupsForUser(new ListGroupsForUserRequest(user.getUserName())).getGroups();
-                        Group primaryGroup = groups.size() > 0 ? groups.iterator().next() : null;
-                        if (primaryGroup == null) {
-                            LOG.warn("Unable to determine primary group for " + user.getUserName());
-                            continue;
-                        }
-                        Entry groupEntry = getExistingGroup(primaryGroup);
-                        if (groupEntry == null) {
-                            LOG.warn("Unable to retrieve matching group entry for group " + primaryGroup.getGroupName() + " user " + user.getUserName());
-                            continue;
-                        }
-                        addUser(user, getUserAccessKey(client, user), groupEntry, groups);
-                        updateGroups(groups, user);
-                        allUsers.add(user.getUserName());
-                        LOG.debug("Added user " + user.getUserName());
-                    } catch (Throwable e) {
-                        LOG.error("Exception processing user " + user.getUserName(), e);
+                    if (!scope.isUserInScope(user)) continue;
+                    IAMSnapshot.UserRecord record = records.get(user.getUserName());
+                    if (record == null) {
+                        record = new IAMSnapshot.UserRecord(user, new ArrayList<Group>());
+                        record.setDeferred(!slice.contains(user.getUserName()));
+                        records.put(user.getUserName(), record);
                     }
+                    record.getGroups().add(group);
                 }
                 if (res.isTruncated()) {
-                    res = client.listUsers(new ListUsersRequest().withMarker(res.getMarker()));
+                    request.setMarker(res.getMarker());
                 } else {
                     break;
                 }
             }
-            removeDeletedUsers(allUsers);
-        } finally {
-            client.shutdown();
         }
+        for (IAMSnapshot.UserRecord record : records.values()) {
+            emitter.emit(record);
+        }
+    }
+
+    /**
+     * @param current true to always list the access keys, false to rely on the credential report where possible
+     */
+    private IAMSnapshot.UserRecord fetchUserRecord(final User user, boolean current) throws Exception {
+        List<Group> groups = scope.filterGroups(rateLimiter.execute(new Callable<List<Group>>() {
+            @Override
+            public List<Group> call() {
+                return iam.listGroupsForUser(new ListGroupsForUserRequest(user.getUserName())).getGroups();
+            }
+        }));
+        IAMSnapshot.UserRecord record = new IAMSnapshot.UserRecord(user, groups);
+        if (!groups.isEmpty()) {
+            String userName = user.getUserName();
+            record.setAccessKey(current ? accessKeys.getCurrentAccessKey(userName) : accessKeys.getActiveAccessKey(userName));
+        }
+        return record;
     }
 
-    private void removeDeletedUsers(Set<String> userNames) {
-        Set<String> toBeDeleted = new HashSet<String>();
-        Collection<Entry> allUsers = getAllEntries(usersDN, "iamaccount");
-        for (Entry user : allUsers) {
+    private void applyUserRecord(IAMSnapshot.UserRecord record, Set<String> allUsers, GroupMembershipIndex membership) {
+        User user = record.getUser();
+        if (record.isFailed()) {
+            stats.failed();
+        }
+        if (record.isFailed() || record.isDeferred()) {
+            // Keep the existing entry until the details can be retrieved, or until its slice comes up
+            allUsers.add(user.getUserName());
+            return;
+        }
+        try {
+            if (syncUser(user, record.getGroups(), record.getAccessKey(), membership)) {
+                allUsers.add(user.getUserName());
+            }
+        } catch (Throwable e) {
+            stats.failed();
+            LOG.error("Exception processing user " + user.getUserName(), e);
+        }
+    }
+
+    /**
+     * Creates or updates the LDAP entry of a single IAM user and its group membership.
+     *
+     * @return true if the user has been processed, false if it was skipped
+     */
+    private boolean syncUser(User user, Collection<Group> groups, String accessKey, GroupMembershipIndex membership) throws Exception {
+        Group primaryGroup = groups.size() > 0 ? groups.iterator().next() : null;
+        if (primaryGroup == null) {
+            LOG.warn("Unable to determine primary group for " + user.getUserName());
+            return false;
+        }
+        List<String> groupNames = new ArrayList<String>();
+        for (Group group : groups) {
+            groupNames.add(group.getGroupName());
+        }
+        String primaryGid = groupGids.get(primaryGroup.getGroupName());
+        String fingerprint = null;
+        if (primaryGid != null) {
+            List<String> state = new ArrayList<String>();
+            state.add(accessKey);
+            state.add(primaryGid);
+            state.addAll(groupNames);
+            fingerprint = FingerprintCache.fingerprint(state);
+            if (!checkEntries && fingerprints.matches(getUserKey(user.getUserName()), fingerprint)) {
+                LOG.debug("User " + user.getUserName() + " is up to date");
+                membership.setMembership(user.getUserName(), groupNames);
+                stats.skipped();
+                return true;
+            }
+        }
+        Entry groupEntry = getExistingGroup(primaryGroup);
+        if (groupEntry == null) {
+            LOG.warn("Unable to retrieve matching group entry for group " + primaryGroup.getGroupName() + " user " + user.getUserName());
+            return false;
+        }
+        if (addUser(user, accessKey, groupEntry, groups) && fingerprint != null) {
+            fingerprints.put(getUserKey(user.getUserName()), fingerprint);
+        }
+        membership.setMembership(user.getUserName(), groupNames);
+        LOG.debug("Added user " + user.getUserName());
+        return true;
+    }
+
+    private void removeDeletedUsers(final Set<String> userNames, GroupMembershipIndex membership) {
+        final List<Entry> deleted = new ArrayList<Entry>();
+        forEachEntry(usersDN, "iamaccount", new EntryVisitor() {
+            @Override
+            public void visit(Entry user) throws LdapException {
+                if (!userNames.contains(user.get(SchemaConstants.CN_AT).getString())) {
+                    deleted.add(user);
+                }
+            }
+        }, SchemaConstants.CN_AT);
+        for (Entry user : deleted) {
             try {
                 String userName = user.get(SchemaConstants.CN_AT).getString();
-                if (!userNames.contains(userName)) {
-                    toBeDeleted.add(userName);
-                    LOG.debug("Deleting non-existing user " + user.get(SchemaConstants.CN_AT));
-                    directory.getAdminSession().delete(user.getDn());
-                }
+                LOG.debug("Deleting non-existing user " + userName);
+                directory.getAdminSession().delete(user.getDn());
+                accountEntries.invalidate(user.getDn());
+                fingerprints.remove(getUserKey(userName));
+                accessKeys.forget(userName);
+                membership.setMembership(userName, Collections.<String>emptyList());
+                stats.deleted();
             } catch (LdapException e) {
                 LOG.error("Unable to delete user " + user.getDn());
             }
         }
-        Collection<Entry> allGroups = getAllEntries(groupsDN, "iamgroup");
-        for (Entry group : allGroups) {
+    }
+
+    /**
+     * Brings the memberUid of every group in line with the membership collected during the cycle,
+     * issuing at most one modification per group.
+     *
+     * @param membership the membership collected from IAM
+     */
+    private void reconcileGroupMembers(final GroupMembershipIndex membership) {
+        if (membership.isEmpty()) return;
+        final Map<Dn, List<Modification>> changes = new LinkedHashMap<Dn, List<Modification>>();
+        forEachEntry(groupsDN, "iamgroup", new EntryVisitor() {
+            @Override
+            public void visit(Entry group) throws LdapException {
+                List<Modification> modifications = membership.getModifications(
+                        group.get(SchemaConstants.CN_AT).getString(), group.get(GroupMembershipIndex.MEMBER_UID));
+                if (!modifications.isEmpty()) {
+                    changes.put(group.getDn(), modifications);
+                }
+            }
+        }, SchemaConstants.CN_AT, GroupMembershipIndex.MEMBER_UID);
+        for (Map.Entry<Dn, List<Modification>> change : changes.entrySet()) {
+            try {
+                LOG.debug("Will modify group " + change.getKey() + " with " + change.getValue());
+                directory.getAdminSession().modify(change.getKey(), change.getValue());
+                stats.modified();
+            } catch (LdapException e) {
+                LOG.error("Unable to update users in group " + change.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Brings the entry of a single user in line with IAM, creating, updating or deleting it as needed.
+     * Used by the event consumer, serialized with the periodic sync.
+     *
+     * @return true if the user has an entry after the refresh
+     */
+    public boolean refreshUser(final String userName) throws Exception {
+        if (!directory.isStarted()) return false;
+        syncLock.lock();
+        try {
+            return doRefreshUser(userName);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold syncLock.
+     */
+    private boolean doRefreshUser(final String userName) throws Exception {
+        createStructure();
+        User user;
+        try {
+            user = rateLimiter.execute(new Callable<User>() {
+                @Override
+                public User call() {
+                    return iam.getUser(new GetUserRequest().withUserName(userName)).getUser();
+                }
+            });
+        } catch (NoSuchEntityException e) {
+            removeUser(userName);
+            return false;
+        }
+        if (!scope.isUserInScope(user)) {
+            removeUser(userName);
+            return false;
+        }
+        IAMSnapshot.UserRecord record = fetchUserRecord(user, true);
+        List<String> groupNames = new ArrayList<String>();
+        for (Group group : record.getGroups()) {
+            addGroup(group);
+            groupNames.add(group.getGroupName());
+        }
+        if (!syncUser(user, record.getGroups(), record.getAccessKey(), new GroupMembershipIndex())) {
+            // The full sync does not keep users without groups or keys either
+            removeUser(userName);
+            return false;
+        }
+        reconcileUserGroups(userName, groupNames);
+        LOG.debug("Refreshed user " + userName);
+        return true;
+    }
+
+    /**
+     * Creates or deletes the entry of a single group, following IAM. IAM only deletes groups without members,
+     * so the membership has already been updated by the preceding RemoveUserFromGroup events.
+     */
+    public void refreshGroup(final String groupName) throws Exception {
+        if (!directory.isStarted()) return;
+        syncLock.lock();
+        try {
+            createStructure();
             try {
-                List<Modification> deletions = new ArrayList<Modification>();
-                for (String userUid : toBeDeleted) {
-                    if (group.contains("memberUid", userUid)) {
-                        deletions.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, "memberUid", userUid));
+                Group group = rateLimiter.execute(new Callable<Group>() {
+                    @Override
+                    public Group call() {
+                        return iam.getGroup(new GetGroupRequest().withGroupName(groupName).withMaxItems(1)).getGroup();
                     }
+                });
+                if (scope.isGroupInScope(group)) {
+                    addGroup(group);
+                } else {
+                    removeGroup(groupName);
                 }
-                if (!deletions.isEmpty()) {
-                    LOG.debug("Deleting " + deletions + " from " + group.getDn());
-                    directory.getAdminSession().modify(group.getDn(), deletions);
+            } catch (NoSuchEntityException e) {
+                removeGroup(groupName);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Refreshes the user from IAM on behalf of a bind which could not find the user or did not match its access key.
+     * Concurrent requests for the same user share a single refresh, and a user is refreshed at most once per
+     * onDemandCacheTtl, whether it exists or not. Across all the names, refreshes are limited to onDemandMaxRate,
+     * so unknown names and bad passwords cannot be turned into a flood of IAM calls.
+     * <p>
+     * The refresh runs on its own small pool and the LDAP request waits for it at most onDemandTimeout. It does not
+     * wait for a sync in progress either, in which case the user is left for the sync to create.
+     *
+     * @return true if the user has been refreshed and the bind is worth retrying
+     */
+    public boolean refreshOnDemand(final String userName) throws Exception {
+        if (recentRefreshes.get(userName) != null || onDemandExecutor == null || !directory.isStarted()) return false;
+        final long timeoutMillis = TimeUnit.SECONDS.toMillis(AWSIAMAuthenticator.getConfig().onDemandTimeout);
+        Future<Boolean> refresh;
+        try {
+            refresh = onDemandRefreshes.submit(userName, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (recentRefreshes.get(userName) != null) return false;
+                    if (!acquireOnDemandPermit()) {
+                        LOG.debug("Too many on-demand refreshes, not looking up " + userName + " in IAM");
+                        return false;
+                    }
+                    // The LDAP request is waiting, it is better to give up than to wait for a full sync to finish
+                    if (!syncLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                        LOG.debug("Sync in progress, not refreshing " + userName + " on demand");
+                        return false;
+                    }
+                    boolean exists;
+                    try {
+                        exists = doRefreshUser(userName);
+                    } finally {
+                        syncLock.unlock();
+                    }
+                    recentRefreshes.put(userName, exists);
+                    LOG.info("Refreshed user " + userName + " on demand, " + (exists ? "found" : "not found") + " in IAM");
+                    return true;
                 }
-            } catch (LdapException e) {
-                LOG.error("Unable to delete users from group " + group.getDn());
+            }, onDemandExecutor);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Too many on-demand refreshes queued, not looking up " + userName + " in IAM");
+            return false;
+        }
+        try {
+            return refresh.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // The refresh carries on, a later bind will find its result
+            LOG.debug("On-demand refresh of " + userName + " did not complete in time");
+            return false;
+        }
+    }
+
+    /**
+     * @return true if another on-demand refresh fits within onDemandMaxRate, which bounds the IAM calls caused by
+     * LDAP requests across all the names
+     */
+    private synchronized boolean acquireOnDemandPermit() {
+        double rate = AWSIAMAuthenticator.getConfig().onDemandMaxRate;
+        if (rate <= 0) return false;
+        long now = System.nanoTime();
+        if (now - nextOnDemandNanos < 0) return false;
+        nextOnDemandNanos = Math.max(now, nextOnDemandNanos) + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        return true;
+    }
+
+    /**
+     * Fetches the user from IAM if it has no entry yet. Only called once a lookup of the entry has failed.
+     *
+     * @return true if the user has been refreshed and the entry is worth looking up again
+     */
+    public boolean materializeIfMissing(String userName) throws Exception {
+        if (!AWSIAMAuthenticator.getConfig().onDemandRefresh || !directory.isStarted()) return false;
+        Dn dn = getUserDn(userName);
+        // The entry may have been created by the sync since the lookup
+        if (directory.getPartitionNexus().hasEntry(new HasEntryOperationContext(directory.getAdminSession(), dn))) return true;
+        return refreshOnDemand(userName);
+    }
+
+    /**
+     * @return the name of the IAM user the DN refers to, or null if it is not the DN of a user entry
+     */
+    public String getUserName(Dn dn) throws LdapException {
+        if (dn == null || dn.size() < 2 || !"uid".equalsIgnoreCase(dn.getRdn().getType())) return null;
+        Dn parent = directory.getDnFactory().create(usersDN);
+        return parent.equals(dn.getParent()) ? dn.getRdn().getValue() : null;
+    }
+
+    /**
+     * Records a bind attempt of the account, which moves it to the hot refresh tier.
+     */
+    public void recordActivity(String userName) {
+        activity.touch(userName);
+    }
+
+    /**
+     * @return the users the full sync leaves alone, as the hot refresh keeps them up to date
+     */
+    private Set<String> getHotUsers() {
+        if (AWSIAMAuthenticator.getConfig().hotRefreshPeriod <= 0) return Collections.emptySet();
+        return new HashSet<String>(activity.getActiveUsers());
+    }
+
+    /**
+     * Refreshes the accounts which have recently been used, between the full syncs which refresh everybody else.
+     */
+    private void refreshActiveUsers() {
+        if (!directory.isStarted()) return;
+        List<String> active = activity.getActiveUsers();
+        if (active.isEmpty()) return;
+        LOG.debug("Refreshing " + active.size() + " recently active users");
+        for (String userName : active) {
+            try {
+                refreshUser(userName);
+            } catch (Exception e) {
+                LOG.error("Unable to refresh active user " + userName, e);
             }
         }
     }
 
-    private String getUserAccessKey(AmazonIdentityManagementClient client, User user) {
-        ListAccessKeysResult res = client.listAccessKeys(new ListAccessKeysRequest().withUserName(user.getUserName()));
-        for (AccessKeyMetadata meta : res.getAccessKeyMetadata()) {
-            if ("Active".equals(meta.getStatus())) {
-                return meta.getAccessKeyId();
+    /**
+     * Runs a full sync as soon as possible, regardless of the change probe.
+     */
+    public void requestFullSync() {
+        fullSyncRequested = true;
+        if (scheduler != null) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pollIAM();
+                }
+            });
+        }
+    }
+
+    private void removeUser(String userName) throws Exception {
+        deleteUserEntry(userName);
+        reconcileUserGroups(userName, Collections.<String>emptyList());
+    }
+
+    /**
+     * Deletes the entry of the user, if it has one, leaving its group membership to the caller.
+     */
+    private void deleteUserEntry(String userName) throws Exception {
+        Entry existing = getExistingUser(new User().withUserName(userName));
+        if (existing != null) {
+            LOG.info("Deleting user " + userName + " removed from IAM");
+            directory.getAdminSession().delete(existing.getDn());
+            accountEntries.invalidate(existing.getDn());
+            stats.deleted();
+        }
+        fingerprints.remove(getUserKey(userName));
+        accessKeys.forget(userName);
+    }
+
+    private void removeGroup(String groupName) throws Exception {
+        Entry existing = getExistingGroup(new Group().withGroupName(groupName));
+        if (existing != null) {
+            LOG.info("Deleting group " + groupName + " removed from IAM");
+            directory.getAdminSession().delete(existing.getDn());
+            stats.deleted();
+        }
+        groupGids.remove(groupName);
+    }
+
+    /**
+     * Updates memberUid of the groups the user joined or left, leaving the other members alone. The membership is also
+     * recorded in the round of slices in progress, so its last slice does not revert it.
+     */
+    private void reconcileUserGroups(String userName, Collection<String> groupNames) throws Exception {
+        if (roundMembership != null) {
+            roundMembership.setMembership(userName, groupNames);
+        }
+        final Set<String> current = new HashSet<String>();
+        ExprNode filter = parseFilter(FilterEncoder.format("(&(objectClass=iamgroup)(memberUid={0}))", userName));
+        forEachEntry(groupsDN, filter, new EntryVisitor() {
+            @Override
+            public void visit(Entry group) throws LdapException {
+                current.add(group.get(SchemaConstants.CN_AT).getString());
+            }
+        }, SchemaConstants.CN_AT);
+        for (String groupName : groupNames) {
+            if (!current.remove(groupName)) {
+                modifyMembers(groupName, ModificationOperation.ADD_ATTRIBUTE, userName);
             }
         }
-        return null;
+        for (String groupName : current) {
+            modifyMembers(groupName, ModificationOperation.REMOVE_ATTRIBUTE, userName);
+        }
+    }
+
+    private void modifyMembers(String groupName, ModificationOperation operation, String userName) throws LdapException {
+        directory.getAdminSession().modify(directory.getDnFactory().create(String.format(GROUP_FMT, groupName)),
+                new DefaultModification(operation, GroupMembershipIndex.MEMBER_UID, userName));
+        stats.modified();
     }
 
-    private void addUser(User user, String accessKey, Entry group, Collection<Group> otherGroups) throws LdapException {
+    /**
+     * @return the DN of the entry of the user, with the characters special to DNs, which IAM allows in names, escaped
+     */
+    private Dn getUserDn(String userName) throws LdapException {
+        return directory.getDnFactory().create(String.format(USER_FMT, Rdn.escapeValue(userName)));
+    }
+
+    private String getUserKey(String userName) {
+        return "user:" + userName;
+    }
+
+    /**
+     * Creates the LDAP entry for the user, or updates the attributes of the existing entry which differ from IAM.
+     *
+     * @return true if the entry is present in LDAP after the call
+     */
+    private boolean addUser(User user, String accessKey, Entry group, Collection<Group> otherGroups) throws LdapException {
         if (accessKey == null) {
             if (AWSIAMAuthenticator.getConfig().isSecretKeyLogin()) {
                 LOG.debug("User " + user.getUserName() + " has no active access keys");
-                return;
+                return false;
             } else {
                 accessKey = "";
             }
         }
         Entry existingUser = getExistingUser(user);
         if (existingUser != null) {
-            directory.getAdminSession().modify(existingUser.getDn(),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "accessKey", accessKey),
-                    new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "gidNumber", group.get("gidNumber").getString())
-            );
+            List<Modification> modifications = new ArrayList<Modification>();
+            replaceIfChanged(existingUser, "accessKey", accessKey, modifications);
+            replaceIfChanged(existingUser, "gidNumber", group.get("gidNumber").getString(), modifications);
             // TODO If gidNumber changed for user, shouldn't groups memberUid list be updated?
-            updateUserMemberOf(existingUser, otherGroups);
-            return;
+            modifications.addAll(getMemberOfModifications(existingUser, otherGroups));
+            if (modifications.isEmpty()) {
+                stats.skipped();
+            } else {
+                LOG.debug("Executing modifications: " + modifications);
+                directory.getAdminSession().modify(existingUser.getDn(), modifications);
+                existingUser.put("accessKey", accessKey);
+                accountEntries.update(existingUser);
+                stats.modified();
+            }
+            return true;
         }
 
-        DefaultEntry ent = new DefaultEntry(directory.getSchemaManager(), directory.getDnFactory().create(String.format(USER_FMT, user.getUserName())));
+        DefaultEntry ent = new DefaultEntry(directory.getSchemaManager(), getUserDn(user.getUserName()));
         ent.put(SchemaConstants.OBJECT_CLASS_AT, "posixAccount", "shadowAccount", "iamaccount", "extensibleObject");
         ent.put("accessKey", accessKey);
         ent.put("uid", user.getUserName());
         ent.put(SchemaConstants.ENTRY_CSN_AT, directory.getCSN().toString());
         ent.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
         ent.put("cn", user.getUserName());
-        ent.put("uidNumber", allocateUserID(user.getArn()));
         if (group != null) {
             ent.put("gidNumber", group.get("gidNumber").getString());
         } else {
@@ -585,7 +1490,17 @@ public class LDAPIAMPoller {
         ent.put("userPassword", createRandomPassword());
         setMemberOf(ent, otherGroups);
 
-        add(ent);
+        addWithID(ent, "posixAccount", "uidNumber", user.getUserId());
+        accountEntries.update(ent);
+        stats.added();
+        return true;
+    }
+
+    private void replaceIfChanged(Entry entry, String attributeName, String value, List<Modification> modifications) throws LdapException {
+        Attribute current = entry.get(attributeName);
+        if (current == null || current.size() != 1 || !current.contains(value)) {
+            modifications.add(new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, attributeName, value));
+        }
     }
 
     private String createRandomPassword() {
@@ -622,43 +1537,37 @@ public class LDAPIAMPoller {
         return sb.toString();
     }
 
-    private void updateUserMemberOf(Entry existingUser, Collection<Group> otherGroups) {
-        LOG.debug("Updating memberOf of " + existingUser.getDn());
-        try {
-            Set<String> existingGroups = new HashSet<String>();
-            Attribute memberOf = existingUser.get(MEMBER_OF);
-            if (memberOf != null) {
-                for (Value value : memberOf) {
-                    existingGroups.add(value.getString());
-                }
+    private List<Modification> getMemberOfModifications(Entry existingUser, Collection<Group> otherGroups) {
+        Set<String> existingGroups = new HashSet<String>();
+        Attribute memberOf = existingUser.get(MEMBER_OF);
+        if (memberOf != null) {
+            for (Value value : memberOf) {
+                existingGroups.add(value.getString());
             }
-            LOG.debug("Existing memberOf groups; " + existingGroups);
-            List<Modification> modifications = new ArrayList<Modification>();
-            for (Group group : otherGroups) {
-                try {
-                    // Skip if it is already present
-                    Entry ldapGroup = getExistingGroup(group);
-                    // Add new
-                    if (ldapGroup != null) {
-                        if (existingGroups.remove(ldapGroup.getDn().toString())) {
-                            continue;
-                        }
-                        modifications.add(new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, MEMBER_OF,
-                                ldapGroup.getDn().toString()));
+        }
+        LOG.debug("Existing memberOf groups of " + existingUser.getDn() + ": " + existingGroups);
+        List<Modification> modifications = new ArrayList<Modification>();
+        for (Group group : otherGroups) {
+            try {
+                // Skip if it is already present
+                Entry ldapGroup = getExistingGroup(group);
+                // Add new
+                if (ldapGroup != null) {
+                    if (existingGroups.remove(ldapGroup.getDn().toString())) {
+                        continue;
                     }
-                } catch (Exception e) {
-                    LOG.error("Unable to update groups for user " + existingUser.getDn() + " while looking at " + group, e);
+                    modifications.add(new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, MEMBER_OF,
+                            ldapGroup.getDn().toString()));
                 }
+            } catch (Exception e) {
+                LOG.error("Unable to update groups for user " + existingUser.getDn() + " while looking at " + group, e);
             }
-            // All remaining group names in existingGroups are absent in IAM so they need to be deleted
-            for (String group : existingGroups) {
-                modifications.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, MEMBER_OF, group));
-            }
-            LOG.debug("Executing modifications: " + modifications);
-            directory.getAdminSession().modify(existingUser.getDn(), modifications);
-        } catch (LdapException e) {
-            LOG.error("Unable to modify memberOf for user " + existingUser.getDn(), e);
         }
+        // All remaining group names in existingGroups are absent in IAM so they need to be deleted
+        for (String group : existingGroups) {
+            modifications.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, MEMBER_OF, group));
+        }
+        return modifications;
     }
 
     private void setMemberOf(DefaultEntry userEntry, Collection<Group> otherGroups) {
@@ -674,45 +1583,20 @@ public class LDAPIAMPoller {
         }
     }
 
-    /**
-     * Updates the list of users in each specified group, to include the new user.
-     *
-     * @param groups the list of groups to update
-     * @param user   the discovered user
-     */
+    private static final Pattern ACCOUNT_PATTERN = Pattern.compile("arn:aws:iam::(\\d+):user/.*");
+    private static final Pattern ROLE_ACCOUNT_PATTERN = Pattern.compile("arn:aws[\\w-]*:iam::(\\d+):role/.*");
 
-    private void updateGroups(Collection<Group> groups, User user) {
-        Set<String> groupNames = new HashSet<String>();
-        for (Group group : groups) {
-            groupNames.add(group.getGroupName());
-        }
-        Collection<Entry> allGroups = getAllEntries(groupsDN, "iamgroup");
-        String userUid = user.getUserName();
-        LOG.debug("Updating groups for " + userUid);
-        for (Entry group : allGroups) {
-            LOG.debug("Looking at group " + group.getDn());
-            try {
-                List<Modification> modifications = new ArrayList<Modification>();
-                if (groupNames.contains(group.get(SchemaConstants.CN_AT).getString())) {
-                    if (!group.contains("memberUid", userUid)) {
-                        modifications.add(new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "memberUid", userUid));
-                    }
-                } else {
-                    if (group.contains("memberUid", userUid)) {
-                        modifications.add(new DefaultModification(ModificationOperation.REMOVE_ATTRIBUTE, "memberUid", userUid));
-                    }
-                }
-                if (!modifications.isEmpty()) {
-                    LOG.debug("Will modify group with " + modifications);
-                    directory.getAdminSession().modify(group.getDn(), modifications);
-                }
-            } catch (LdapException e) {
-                LOG.error("Unable to update users in group " + group.getDn(), e);
-            }
+    private static String getRoleAccountNumber(String roleArn) throws LdapException {
+        Matcher result = ROLE_ACCOUNT_PATTERN.matcher(roleArn);
+        if (result.matches()) {
+            return result.group(1);
         }
+        throw new LdapException("Unable to identify account number for role " + roleArn);
     }
 
-    private static final Pattern ACCOUNT_PATTERN = Pattern.compile("arn:aws:iam::(\\d+):user/.*");
+    private String getThreadPrefix(String prefix) {
+        return accountId != null ? prefix + "-" + accountId : prefix;
+    }
 
     private String getAccountNumber(String arn) {
         Matcher result = ACCOUNT_PATTERN.matcher(arn);
@@ -724,7 +1608,7 @@ public class LDAPIAMPoller {
 
     private Entry getExistingUser(User user) throws LdapException {
         LookupOperationContext lookupContext = new LookupOperationContext(directory.getAdminSession(),
-                directory.getDnFactory().create(String.format(USER_FMT, user.getUserName())), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
+                getUserDn(user.getUserName()), SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES);
 
         try {
             Entry userEntry = directory.getPartitionNexus().lookup(lookupContext);
@@ -737,18 +1621,72 @@ public class LDAPIAMPoller {
         return null;
     }
 
-    private String allocateUserID(String name) {
-        return allocateID();
+    /**
+     * Stops the syncs and releases the threads and clients of the poller. A sync in progress is interrupted.
+     */
+    public void stop() {
+        if (pollScheduler != null) {
+            pollScheduler.stop();
+        }
+        try {
+            // The directory outlives the poller, so a later poller must not find this one in its interceptors
+            OnDemandUserInterceptor.unregister(directory, this);
+            if (accountEntryInterceptor != null) {
+                directory.remove(accountEntryInterceptor.getName());
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to remove the interceptors of the poller", e);
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (onDemandExecutor != null) {
+            onDemandExecutor.shutdownNow();
+        }
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+        }
+        if (pageExecutor != null) {
+            pageExecutor.shutdownNow();
+        }
+        credentials.shutdown();
+        iam.shutdown();
+        LOG.info("IAMPoller stopped");
     }
 
     public void start() {
         LOG.info("IAMPoller started");
-        Runnable poll = new Runnable() {
+        fetchExecutor = Executors.newFixedThreadPool(Math.max(1, AWSIAMAuthenticator.getConfig().fetchConcurrency),
+                new NamedThreadFactory(getThreadPrefix("iam-fetch")));
+        pageExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory(getThreadPrefix("iam-pages")));
+        scheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory(getThreadPrefix("iam-poll")));
+        if (AWSIAMAuthenticator.getConfig().onDemandRefresh) {
+            onDemandExecutor = new ThreadPoolExecutor(ON_DEMAND_THREADS, ON_DEMAND_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(ON_DEMAND_QUEUE_SIZE),
+                    new NamedThreadFactory(getThreadPrefix("iam-on-demand")));
+        }
+        AWSIAMAuthenticator.Config config = AWSIAMAuthenticator.getConfig();
+        // With the hot refresh keeping the active users fresh, the full sync only has to catch up with the others
+        int period = config.hotRefreshPeriod > 0 ? Math.max(config.pollPeriod, config.coldPollPeriod) : config.pollPeriod;
+        // With the rolling sync every tick refreshes one slice, so each user is still refreshed once per period
+        int tick = Math.max(1, period / Math.max(1, config.rollingSlices));
+        pollScheduler = new AdaptivePollScheduler(scheduler, new AdaptivePollScheduler.Cycle() {
             @Override
-            public void run() {
-                pollIAM();
+            public SyncStats run() {
+                return pollIAM();
             }
-        };
-        schedule = Executors.newScheduledThreadPool(1).scheduleAtFixedRate(poll, 10, pollPeriod, TimeUnit.SECONDS);
+        }, rateLimiter, tick,
+                config.pollMinPeriod > 0 ? config.pollMinPeriod / Math.max(1, config.rollingSlices) : tick / 4,
+                config.pollMaxPeriod > 0 ? config.pollMaxPeriod / Math.max(1, config.rollingSlices) : tick * 2,
+                config.pollJitter, getName());
+        pollScheduler.start(10);
+        if (config.hotRefreshPeriod > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refreshActiveUsers();
+                }
+            }, config.hotRefreshPeriod, config.hotRefreshPeriod, TimeUnit.SECONDS);
+        }
     }
 }
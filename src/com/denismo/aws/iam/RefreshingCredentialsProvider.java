@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the last credentials obtained from the wrapped provider and refreshes them in the background,
+ * well before temporary credentials (instance profile, container or assumed role) expire. Callers never wait
+ * for the metadata service or STS, except for the very first call.
+ */
+public class RefreshingCredentialsProvider implements AWSCredentialsProvider {
+    private static final Logger LOG = LoggerFactory.getLogger(RefreshingCredentialsProvider.class);
+    private static final long MIN_REFRESH_SECONDS = 10;
+    /**
+     * Temporary credentials last at least 15 minutes, the refresh must come well before that.
+     */
+    private static final long MAX_REFRESH_SECONDS = 600;
+
+    private final AWSCredentialsProvider delegate;
+    private final ScheduledExecutorService refresher;
+    private volatile AWSCredentials credentials;
+
+    /**
+     * @param delegate       the provider actually resolving the credentials
+     * @param refreshSeconds how often the credentials are refreshed, brought within 10 to 600 seconds
+     */
+    public RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshSeconds) {
+        long period = Math.min(MAX_REFRESH_SECONDS, Math.max(MIN_REFRESH_SECONDS, refreshSeconds));
+        if (period != refreshSeconds) {
+            LOG.warn("Refreshing the AWS credentials every " + period + "s instead of " + refreshSeconds + "s");
+        }
+        this.delegate = delegate;
+        this.credentials = delegate.getCredentials();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("iam-credentials"));
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        return credentials;
+    }
+
+    @Override
+    public void refresh() {
+        try {
+            delegate.refresh();
+            credentials = delegate.getCredentials();
+        } catch (RuntimeException e) {
+            // Keep serving the previous credentials, they usually stay valid for a while longer
+            LOG.error("Unable to refresh AWS credentials", e);
+        }
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the call, the callers arriving while it is
+ * in flight wait for it and receive the same result or exception. Nothing is cached once the call completes.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    public V execute(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> inFlight = calls.putIfAbsent(key, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+        try {
+            return inFlight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #execute}, but runs the call on the executor and returns at once, so the callers can choose how
+     * long to wait for it.
+     *
+     * @throws RejectedExecutionException if the executor does not accept the call
+     */
+    public Future<V> submit(final K key, Callable<V> call, Executor executor) {
+        FutureTask<V> task = new FutureTask<V>(call) {
+            @Override
+            protected void done() {
+                calls.remove(key, this);
+            }
+        };
+        FutureTask<V> inFlight = calls.putIfAbsent(key, task);
+        if (inFlight != null) return inFlight;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            calls.remove(key, task);
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    public int size() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import com.amazonaws.services.identitymanagement.model.Group;
+import com.amazonaws.services.identitymanagement.model.User;
+import com.denismo.apacheds.auth.AWSIAMAuthenticator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The part of the account which is synced: the users and groups under the configured IAM paths, and the groups
+ * whose names match the include patterns and none of the exclude patterns. When group patterns are configured,
+ * only the members of the included groups are synced.
+ */
+public class SyncScope {
+    private final String userPathPrefix;
+    private final String groupPathPrefix;
+    private final List<Pattern> includeGroups;
+    private final List<Pattern> excludeGroups;
+
+    public SyncScope(String userPathPrefix, String groupPathPrefix, String includeGroups, String excludeGroups) {
+        this.userPathPrefix = normalizePath(userPathPrefix);
+        this.groupPathPrefix = normalizePath(groupPathPrefix);
+        this.includeGroups = parsePatterns(includeGroups);
+        this.excludeGroups = parsePatterns(excludeGroups);
+    }
+
+    public static SyncScope fromConfig(AWSIAMAuthenticator.Config config) {
+        return new SyncScope(config.userPathPrefix, config.groupPathPrefix, config.includeGroups, config.excludeGroups);
+    }
+
+    /**
+     * @return the PathPrefix for ListUsers
+     */
+    public String getUserPathPrefix() {
+        return userPathPrefix;
+    }
+
+    /**
+     * @return the PathPrefix for ListGroups
+     */
+    public String getGroupPathPrefix() {
+        return groupPathPrefix;
+    }
+
+    /**
+     * @return true if the users are selected by the membership of the included groups
+     */
+    public boolean hasGroupFilter() {
+        return !includeGroups.isEmpty() || !excludeGroups.isEmpty();
+    }
+
+    public boolean isUserInScope(User user) {
+        return user.getPath() == null || user.getPath().startsWith(userPathPrefix);
+    }
+
+    public boolean isGroupInScope(Group group) {
+        if (group.getPath() != null && !group.getPath().startsWith(groupPathPrefix)) return false;
+        String name = group.getGroupName();
+        if (!includeGroups.isEmpty() && !matchesAny(includeGroups, name)) return false;
+        return !matchesAny(excludeGroups, name);
+    }
+
+    /**
+     * @return the groups which are in scope, in the original order
+     */
+    public List<Group> filterGroups(Collection<Group> groups) {
+        List<Group> result = new ArrayList<Group>();
+        for (Group group : groups) {
+            if (isGroupInScope(group)) result.add(group);
+        }
+        return result;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) return true;
+        }
+        return false;
+    }
+
+    private static String normalizePath(String path) {
+        if (path == null || path.isEmpty()) return "/";
+        return path.startsWith("/") ? path : "/" + path;
+    }
+
+    /**
+     * Parses comma separated glob patterns, where * stands for any number of characters.
+     */
+    private static List<Pattern> parsePatterns(String patterns) {
+        List<Pattern> result = new ArrayList<Pattern>();
+        if (patterns == null) return result;
+        for (String glob : patterns.split(",")) {
+            glob = glob.trim();
+            if (glob.isEmpty()) continue;
+            StringBuilder regex = new StringBuilder();
+            String[] parts = glob.split("\\*", -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) regex.append(".*");
+                if (!parts[i].isEmpty()) regex.append(Pattern.quote(parts[i]));
+            }
+            result.add(Pattern.compile(regex.toString()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persists the state of the last successful sync (group IDs and entry fingerprints) in a compressed, versioned
+ * binary file, so that after a restart the poller only writes the entries which changed in IAM in the meantime.
+ * The state also records whether the entries have been compared with IAM since the fingerprints were taken, and
+ * how many syncs ago, so a restart does not bring the next comparison forward.
+ * <p>
+ * The state is bound to the entryUUID of the root entry: if the partition has been recreated since the state was
+ * saved, the file is ignored and a full reconciliation takes place.
+ */
+public class SyncStateStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncStateStore.class);
+    private static final int MAGIC = 0x49414D53; // "IAMS"
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    public static class State {
+        private final Map<String, String> groupGids;
+        private final Map<String, String> fingerprints;
+        private final String probe;
+        private final boolean entriesChecked;
+        private final int roundsSinceCheck;
+
+        public State(Map<String, String> groupGids, Map<String, String> fingerprints, String probe,
+                     boolean entriesChecked, int roundsSinceCheck) {
+            this.groupGids = groupGids;
+            this.fingerprints = fingerprints;
+            this.probe = probe;
+            this.entriesChecked = entriesChecked;
+            this.roundsSinceCheck = roundsSinceCheck;
+        }
+
+        public Map<String, String> getGroupGids() {
+            return groupGids;
+        }
+
+        public Map<String, String> getFingerprints() {
+            return fingerprints;
+        }
+
+        /**
+         * @return the result of the change probe taken before the sync, or an empty string
+         */
+        public String getProbe() {
+            return probe;
+        }
+
+        /**
+         * @return true if every entry has been compared with IAM since the poller started, false for the states
+         * saved before the first comparison
+         */
+        public boolean isEntriesChecked() {
+            return entriesChecked;
+        }
+
+        /**
+         * @return the number of syncs since the entries were last compared with IAM
+         */
+        public int getRoundsSinceCheck() {
+            return roundsSinceCheck;
+        }
+    }
+
+    public SyncStateStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void save(String rootUuid, State state) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(rootUuid);
+            out.writeLong(System.currentTimeMillis());
+            writeMap(out, state.getGroupGids());
+            writeMap(out, state.getFingerprints());
+            out.writeUTF(state.getProbe() != null ? state.getProbe() : "");
+            out.writeBoolean(state.isEntriesChecked());
+            out.writeInt(state.getRoundsSinceCheck());
+        } finally {
+            out.close();
+        }
+        // Replace the previous state only once the new one is complete
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the saved state, or null if there is none or it does not belong to the current partition
+     */
+    public State load(String rootUuid) {
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC) {
+                    LOG.warn("Ignoring sync state " + file + " - unsupported format");
+                    return null;
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    LOG.warn("Ignoring sync state " + file + " - unsupported version " + version);
+                    return null;
+                }
+                if (!in.readUTF().equals(rootUuid)) {
+                    LOG.info("Ignoring sync state " + file + " - it belongs to a different partition");
+                    return null;
+                }
+                long savedAt = in.readLong();
+                Map<String, String> groupGids = readMap(in);
+                Map<String, String> fingerprints = readMap(in);
+                String probe = in.readUTF();
+                boolean entriesChecked = in.readBoolean();
+                int roundsSinceCheck = in.readInt();
+                State state = new State(groupGids, fingerprints, probe, entriesChecked, roundsSinceCheck);
+                LOG.info("Loaded sync state of " + state.getFingerprints().size() + " entries saved "
+                        + (System.currentTimeMillis() - savedAt) / 1000 + "s ago");
+                return state;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read sync state " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new HashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+}
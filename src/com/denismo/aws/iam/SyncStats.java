@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters of the LDAP work done during a single sync cycle.
+ */
+public class SyncStats {
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger modified = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public void added() {
+        added.incrementAndGet();
+    }
+
+    public void modified() {
+        modified.incrementAndGet();
+    }
+
+    public void deleted() {
+        deleted.incrementAndGet();
+    }
+
+    public void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    public int getAdded() {
+        return added.get();
+    }
+
+    public int getModified() {
+        return modified.get();
+    }
+
+    public int getDeleted() {
+        return deleted.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of users which could not be synced and have been left as they were
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of entries which have been written to
+     */
+    public int getChanges() {
+        return getAdded() + getModified() + getDeleted();
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + getAdded() + ", modified=" + getModified() + ", deleted=" + getDeleted()
+                + ", skipped=" + getSkipped() + ", failed=" + getFailed();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Derives uidNumber/gidNumber values from the immutable IAM unique IDs (AIDA..., AGPA...), so that every
+ * bridge instance assigns the same number to the same user or group without keeping any counter.
+ * Collisions are resolved by probing the following numbers of the range.
+ */
+public class UnixIdMapper {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long rangeStart;
+    private final long rangeSize;
+
+    public UnixIdMapper(long rangeStart, long rangeSize) {
+        if (rangeStart < 0 || rangeSize <= 0 || rangeStart + rangeSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid ID range " + rangeStart + "+" + rangeSize);
+        }
+        this.rangeStart = rangeStart;
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Returns the ID candidate for the given unique ID.
+     *
+     * @param uniqueId the IAM UserId/GroupId/RoleId
+     * @param attempt  the collision probe, 0 for the first attempt
+     */
+    public long getId(String uniqueId, int attempt) {
+        return rangeStart + Math.floorMod(hash(uniqueId) + attempt, rangeSize);
+    }
+
+    public long getRangeSize() {
+        return rangeSize;
+    }
+
+    private static long hash(String uniqueId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(uniqueId.getBytes(UTF8));
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
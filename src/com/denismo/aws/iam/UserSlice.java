@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+/**
+ * One of the slices the users are divided into by the rolling sync. Users are assigned to a slice by the hash
+ * of their name, which is stable across restarts, so every user is refreshed once per round of slices.
+ */
+public class UserSlice {
+    public static final UserSlice ALL = new UserSlice(0, 1);
+
+    private final int index;
+    private final int count;
+
+    public UserSlice(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid slice " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public boolean contains(String userName) {
+        return count == 1 || Math.floorMod(userName.hashCode(), count) == index;
+    }
+
+    public boolean isAll() {
+        return count == 1;
+    }
+
+    @Override
+    public String toString() {
+        return (index + 1) + "/" + count;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 Denis Mikhalkin.
+ *
+ * This software is provided to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.  You may obtain a copy of the
+ * License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.denismo.aws.iam;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Three stage user sync pipeline:
+ * <ol>
+ *     <li>fetch - pages through the IAM users on its own thread, prefetching the next page while the previous
+ *     one is still being processed</li>
+ *     <li>transform - completes every user record (groups, access key) on the worker pool</li>
+ *     <li>apply - writes the records to LDAP, in the order they were fetched, on the calling thread</li>
+ * </ol>
+ * The stages are connected by a bounded queue, so the fetch stage stops when the apply stage falls behind and
+ * the memory used does not depend on the size of the account.
+ */
+public class UserSyncPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(UserSyncPipeline.class);
+    private static final Pending END = new Pending(null, null);
+
+    public interface Fetcher {
+        void fetch(Emitter emitter) throws Exception;
+    }
+
+    public interface Emitter {
+        void emit(IAMSnapshot.UserRecord record) throws InterruptedException;
+    }
+
+    public interface Transformer {
+        IAMSnapshot.UserRecord transform(IAMSnapshot.UserRecord record) throws Exception;
+    }
+
+    public interface Applier {
+        void apply(IAMSnapshot.UserRecord record);
+    }
+
+    private static class Pending {
+        private final IAMSnapshot.UserRecord record;
+        private final Future<IAMSnapshot.UserRecord> result;
+
+        private Pending(IAMSnapshot.UserRecord record, Future<IAMSnapshot.UserRecord> result) {
+            this.record = record;
+            this.result = result;
+        }
+    }
+
+    private final ExecutorService fetchStage;
+    private final ExecutorService transformStage;
+    private final int queueSize;
+
+    public UserSyncPipeline(ExecutorService fetchStage, ExecutorService transformStage, int queueSize) {
+        this.fetchStage = fetchStage;
+        this.transformStage = transformStage;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Runs the pipeline until the fetcher has no more users and all of them have been applied.
+     *
+     * @throws Exception the exception of the fetcher, if it failed. All the records fetched before the failure
+     *                   have been applied.
+     */
+    public void run(final Fetcher fetcher, final Transformer transformer, Applier applier) throws Exception {
+        final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(queueSize);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Future<?> fetching = fetchStage.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    fetcher.fetch(new Emitter() {
+                        @Override
+                        public void emit(final IAMSnapshot.UserRecord record) throws InterruptedException {
+                            Future<IAMSnapshot.UserRecord> result = transformStage.submit(new Callable<IAMSnapshot.UserRecord>() {
+                                @Override
+                                public IAMSnapshot.UserRecord call() throws Exception {
+                                    return transformer.transform(record);
+                                }
+                            });
+                            put(queue, new Pending(record, result), cancelled);
+                        }
+                    });
+                } finally {
+                    put(queue, END, cancelled);
+                }
+                return null;
+            }
+        });
+
+        try {
+            while (true) {
+                Pending pending = queue.take();
+                if (pending == END) break;
+                IAMSnapshot.UserRecord record;
+                try {
+                    record = pending.result.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Exception fetching user " + pending.record.getUser().getUserName(), e.getCause());
+                    record = pending.record;
+                    record.setFailed(true);
+                }
+                applier.apply(record);
+            }
+        } finally {
+            cancelled.set(true);
+            queue.clear();
+        }
+
+        try {
+            fetching.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private static void put(BlockingQueue<Pending> queue, Pending pending, AtomicBoolean cancelled) throws InterruptedException {
+        while (!queue.offer(pending, 100, TimeUnit.MILLISECONDS)) {
+            if (cancelled.get()) throw new CancellationException("User sync has been cancelled");
+        }
+    }
+}
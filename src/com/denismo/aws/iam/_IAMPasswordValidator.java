@@ -29,4 +29,9 @@ import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueEx
  */
 public interface _IAMPasswordValidator {
     boolean verifyIAMPassword(Entry user, String pw) throws LdapInvalidAttributeValueException, LdapAuthenticationException;
+
+    /**
+     * Releases the connections and threads of the validator.
+     */
+    void shutdown();
 }